@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.component;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of emitting a tick event to many listening components.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ComponentEventBenchmark {
+    public static class TickListener {
+        private int ticks;
+
+        @ComponentEventListener
+        public void onTick(ComponentTickEvent event) {
+            ticks++;
+        }
+    }
+
+    @Param({"10000"})
+    public int listeners;
+
+    private ComponentEventHandler handler;
+    private ComponentTickEvent event;
+
+    @Setup
+    public void setup() {
+        handler = new ComponentEventHandler();
+        for (int i = 0; i < listeners; i++) {
+            handler.register(new TickListener());
+        }
+        event = new ComponentTickEvent(0.05);
+    }
+
+    @Benchmark
+    public void emitTick() {
+        handler.emit(event);
+    }
+}
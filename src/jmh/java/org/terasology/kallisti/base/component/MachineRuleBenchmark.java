@@ -0,0 +1,218 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.component;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of building a machine whose components are expanded
+ * through component rules, as well as of joining contexts through linking
+ * rules.
+ *
+ * The rule benchmarks invoke the rules a machine applies to each of its
+ * components directly, once through MethodHandles shaped like the
+ * invokers Machine compiles and once through the reflection API, as a
+ * baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MachineRuleBenchmark {
+    public static class Context implements ComponentContext {
+        private final String id;
+
+        public Context(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String identifier() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Context && ((Context) other).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    public static class BenchmarkMachine extends Machine {
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            return true;
+        }
+    }
+
+    @ComponentInterface
+    public interface Source {
+
+    }
+
+    public static class SourceImpl implements Source {
+
+    }
+
+    @ComponentInterface
+    public static class Derived {
+        @ComponentRule
+        public Derived(BenchmarkMachine machine, Source source) {
+
+        }
+    }
+
+    @ComponentInterface
+    public static class DerivedTwice {
+        @ComponentRule
+        public DerivedTwice(Derived derived) {
+
+        }
+    }
+
+    @ComponentInterface
+    public static class Unrelated {
+        @ComponentRule
+        public Unrelated(Machine machine, Unrelated other) {
+
+        }
+    }
+
+    @ComponentRule(priority = 1)
+    public static Context joinFailing(Context... contexts) {
+        return null;
+    }
+
+    @ComponentRule
+    public static Context join(Context... contexts) {
+        return contexts[0];
+    }
+
+    @Param({"200"})
+    public int components;
+
+    private Map<ComponentContext, Object> objects;
+    private BenchmarkMachine joinMachine;
+    private Context[] joinContexts;
+
+    private Constructor derivedConstructor, derivedTwiceConstructor;
+    private Method joinMethod;
+    private MethodHandle derivedHandle, derivedTwiceHandle, joinHandle;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        objects = new LinkedHashMap<>();
+        for (int i = 0; i < components; i++) {
+            objects.put(new Context("component" + i), new SourceImpl());
+        }
+
+        joinMachine = createMachine();
+        joinContexts = new Context[] { new Context("a"), new Context("b"), new Context("c") };
+
+        derivedConstructor = Derived.class.getConstructor(BenchmarkMachine.class, Source.class);
+        derivedTwiceConstructor = DerivedTwice.class.getConstructor(Derived.class);
+        joinMethod = MachineRuleBenchmark.class.getMethod("join", Context[].class);
+        derivedHandle = compile(MethodHandles.lookup().unreflectConstructor(derivedConstructor), 2);
+        derivedTwiceHandle = compile(MethodHandles.lookup().unreflectConstructor(derivedTwiceConstructor), 1);
+        joinHandle = compile(MethodHandles.lookup().unreflect(joinMethod), 1);
+    }
+
+    // Matches the shape of Machine's rule invokers.
+    private static MethodHandle compile(MethodHandle handle, int arity) {
+        return handle.asFixedArity()
+                .asSpreader(Object[].class, arity)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+    }
+
+    private BenchmarkMachine createMachine() {
+        BenchmarkMachine machine = new BenchmarkMachine();
+        machine.registerRules(MachineRuleBenchmark.class);
+        machine.registerRules(Derived.class);
+        machine.registerRules(DerivedTwice.class);
+        machine.registerRules(Unrelated.class);
+        return machine;
+    }
+
+    @Benchmark
+    public Machine addComponent() {
+        BenchmarkMachine machine = createMachine();
+        for (Map.Entry<ComponentContext, Object> entry : objects.entrySet()) {
+            machine.addComponent(entry.getKey(), entry.getValue());
+        }
+        return machine;
+    }
+
+    @Benchmark
+    public Machine addComponents() {
+        BenchmarkMachine machine = createMachine();
+        machine.addComponents(objects);
+        return machine;
+    }
+
+    @Benchmark
+    public Object join() {
+        return joinMachine.join(joinContexts);
+    }
+
+    @Benchmark
+    public void invokeRulesMethodHandle(Blackhole blackhole) throws Throwable {
+        for (Object source : objects.values()) {
+            Object derived = (Object) derivedHandle.invokeExact(new Object[] { joinMachine, source });
+            blackhole.consume((Object) derivedTwiceHandle.invokeExact(new Object[] { derived }));
+        }
+        blackhole.consume((Object) joinHandle.invokeExact(new Object[] { joinContexts }));
+    }
+
+    @Benchmark
+    public void invokeRulesReflective(Blackhole blackhole) throws ReflectiveOperationException {
+        for (Object source : objects.values()) {
+            Object derived = derivedConstructor.newInstance(joinMachine, source);
+            blackhole.consume(derivedTwiceConstructor.newInstance(derived));
+        }
+        blackhole.consume(joinMethod.invoke(null, (Object) joinContexts));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.terasology.jnlua.LuaState53;
+import org.terasology.kallisti.simulator.SimulatorComponentContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the watchdog hooks on a CPU-bound Lua loop,
+ * which is their worst case. Each benchmark call is one machine tick,
+ * resuming the machine through the same path as the scheduler. The loop
+ * runs either on the machine thread, under the hook installed by the
+ * machine itself, or in a coroutine, under a hook set the way machine.lua
+ * sets it on every coroutine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class LuaWatchdogBenchmark {
+    private static final String BUSY_LOOP = "local n = 0 for i = 1, 1000000 do n = n + i % 7 end return n";
+
+    @Param({"false", "true"})
+    public boolean watchdog;
+
+    @Param({"thread", "coroutine"})
+    public String runOn;
+
+    private MachineOpenComputers machine;
+
+    @Setup
+    public void setup() throws Exception {
+        String body;
+        if ("coroutine".equals(runOn)) {
+            body = "local deadline = computer.realTime() + system.timeout() "
+                    + "local co = coroutine.create(function() " + BUSY_LOOP + " end) "
+                    + (watchdog ? "debug.sethook(co, function() "
+                            + "if computer.realTime() > deadline then error('too long without yielding', 0) end "
+                            + "end, '', " + MachineOpenComputers.WATCHDOG_INSTRUCTIONS + ") " : "")
+                    + "coroutine.resume(co)";
+        } else {
+            body = "(function() " + BUSY_LOOP + " end)()";
+        }
+        String machineLua = "while true do " + body + " coroutine.yield(0) end";
+
+        machine = new MachineOpenComputers(machineLua, new SimulatorComponentContext("computer"), null, 0, true, LuaState53.class, false);
+        machine.setTimeout(5);
+        machine.initialize();
+        machine.start();
+        if (!watchdog) {
+            machine.setWatchdogHook(false);
+        }
+        // Start the machine thread, so that every benchmarked tick runs
+        // the loop once.
+        machine.tick(0.05);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        machine.close();
+    }
+
+    @Benchmark
+    public boolean busyLoop() throws Exception {
+        return machine.tick(0.05);
+    }
+}
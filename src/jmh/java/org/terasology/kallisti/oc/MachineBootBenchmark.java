@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.terasology.jnlua.LuaState53;
+import org.terasology.kallisti.simulator.SimulatorComponentContext;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares rebooting a MachineOpenComputers in place with constructing,
+ * initializing and starting a new one. The machine code requests a reboot
+ * as soon as it runs, so both benchmarks end with the new kernel's first
+ * resume.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MachineBootBenchmark {
+    private static final String MACHINE_LUA = "coroutine.yield(true)";
+
+    private MachineOpenComputers machine;
+
+    private static MachineOpenComputers createMachine() throws Exception {
+        MachineOpenComputers machine = new MachineOpenComputers(MACHINE_LUA, new SimulatorComponentContext("computer"), null, 0, true, LuaState53.class, false);
+        machine.initialize();
+        machine.start();
+        return machine;
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        machine = createMachine();
+        machine.tick(0.05);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        machine.close();
+    }
+
+    @Benchmark
+    public boolean cold() throws Exception {
+        MachineOpenComputers machine = createMachine();
+        try {
+            return machine.tick(0.05);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Benchmark
+    public boolean reboot() throws Exception {
+        // The first tick reboots the machine, the second one resumes it up
+        // to its next reboot request.
+        return machine.tick(0.05) && machine.tick(0.05);
+    }
+}
@@ -17,21 +17,33 @@
 package org.terasology.kallisti.base.component;
 
 import org.terasology.kallisti.base.util.CollectionBackedMultiValueMap;
+import org.terasology.kallisti.base.util.KallistiReflect;
 import org.terasology.kallisti.base.util.MultiValueMap;
 
 import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * Utility class which stores listeners for each given ComponentEvent and
  * allows emitting said events.
  *
+ * A listener declared for a given event class also receives all events of
+ * its subclasses. The listeners matching each emitted event class are
+ * computed once and cached until a listener is registered or unregistered.
+ *
  * @see ComponentEvent
  */
 public class ComponentEventHandler {
+    private static final MethodType LISTENER_TYPE = MethodType.methodType(void.class, Object.class, ComponentEvent.class);
+    private static final Listener[] NO_LISTENERS = new Listener[0];
+
     private static class Listener {
         private final Object parent;
         private final MethodHandle handle;
@@ -39,7 +51,7 @@ public class ComponentEventHandler {
         public Listener(Object parent, Method method) {
             this.parent = parent;
             try {
-                this.handle = MethodHandles.lookup().unreflect(method);
+                this.handle = MethodHandles.lookup().unreflect(method).asType(LISTENER_TYPE);
             } catch (IllegalAccessException e) {
                 // Should be caught earlier!
                 throw new RuntimeException(e);
@@ -47,14 +59,17 @@ public class ComponentEventHandler {
         }
 
         public void invoke(ComponentEvent event) throws Throwable {
-            this.handle.invoke(parent, event);
+            this.handle.invokeExact(parent, event);
         }
     }
 
     private final MultiValueMap<Class, Listener> listeners;
+    private final Map<Class, Listener[]> dispatchTable;
+    private long failures;
 
     public ComponentEventHandler() {
-        listeners = new CollectionBackedMultiValueMap<>(new HashMap<>(), ArrayList::new);
+        listeners = new CollectionBackedMultiValueMap<>(new IdentityHashMap<>(), ArrayList::new);
+        dispatchTable = new IdentityHashMap<>();
     }
 
     /**
@@ -69,21 +84,104 @@ public class ComponentEventHandler {
                     && !m.isVarArgs()
                     && ComponentEvent.class.isAssignableFrom(m.getParameterTypes()[0])) {
                 listeners.add(m.getParameterTypes()[0], new Listener(o, m));
+                dispatchTable.clear();
+            }
+        }
+    }
+
+    /**
+     * Register the @ComponentEventListener-marked methods of multiple objects
+     * as event listeners.
+     * @param objects The objects.
+     */
+    public void registerAll(Iterable<?> objects) {
+        for (Object o : objects) {
+            register(o);
+        }
+    }
+
+    /**
+     * Unregister all event listeners belonging to a given object.
+     * @param o The object.
+     */
+    public void unregister(Object o) {
+        for (Class c : listeners.keys()) {
+            List<Listener> toRemove = new ArrayList<>();
+            for (Listener l : listeners.values(c)) {
+                if (l.parent == o) {
+                    toRemove.add(l);
+                }
+            }
+            for (Listener l : toRemove) {
+                listeners.remove(c, l);
+                dispatchTable.clear();
             }
         }
     }
 
+    private Listener[] getListeners(Class c) {
+        Listener[] result = dispatchTable.get(c);
+        if (result == null) {
+            List<Listener> list = new ArrayList<>();
+            for (Class cc : KallistiReflect.hierarchy(c)) {
+                if (listeners.contains(cc)) {
+                    list.addAll(listeners.values(cc));
+                }
+            }
+
+            result = list.isEmpty() ? NO_LISTENERS : list.toArray(new Listener[0]);
+            dispatchTable.put(c, result);
+        }
+        return result;
+    }
+
+    /**
+     * Check whether any listeners would receive an event of a given class.
+     * Emitters may use this to skip creating events nobody listens to.
+     * @param c The event class.
+     * @return Whether there are any listeners.
+     */
+    public boolean hasListeners(Class<? extends ComponentEvent> c) {
+        return getListeners(c).length > 0;
+    }
+
+    /**
+     * Check whether any listeners belonging to objects matching a filter
+     * would receive an event of a given class.
+     * @param c The event class.
+     * @param filter The filter, given the objects the listeners belong to.
+     * @return Whether there are any such listeners.
+     */
+    public boolean hasListeners(Class<? extends ComponentEvent> c, Predicate<Object> filter) {
+        for (Listener l : getListeners(c)) {
+            if (filter.test(l.parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of listener invocations which threw an exception.
+     */
+    public long getFailureCount() {
+        return failures;
+    }
+
     /**
-     * Emit a given ComponentEvent to all matching listeners.
+     * Emit a given ComponentEvent to all matching listeners. Exceptions
+     * thrown by listeners do not prevent the remaining listeners from being
+     * called; they are counted by getFailureCount().
      * @param event The event.
      */
     public void emit(ComponentEvent event) {
-        for (Listener l : listeners.values(event.getClass())) {
+        // Listeners registered or unregistered while emitting do not affect
+        // the array being iterated.
+        for (Listener l : getListeners(event.getClass())) {
             try {
                 l.invoke(event);
             } catch (Throwable t) {
-                t.printStackTrace();
-                // TODO: pass?
+                failures++;
             }
         }
     }
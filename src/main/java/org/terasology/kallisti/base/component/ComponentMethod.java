@@ -48,4 +48,19 @@ public @interface ComponentMethod {
      * computer's separate thread.
      */
     boolean synchronize() default false;
+
+    /**
+     * @return The maximum number of direct calls to the method a machine
+     * can make per tick, given a call budget of 1; further calls are
+     * deferred until the next tick, on platforms which support it. Zero
+     * means no limit.
+     */
+    int limit() default 0;
+
+    /**
+     * @return The share of a machine's per-tick call budget consumed by
+     * a direct call to the method. If zero, the cost is derived from the
+     * limit instead.
+     */
+    double cost() default 0;
 }
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.component;
+
+/**
+ * This ComponentEvent is emitted whenever a component is removed from the
+ * Machine, including components removed because a component they were
+ * derived from was. The removed component's own listeners are not called.
+ */
+public class ComponentRemovedEvent extends ComponentEvent {
+    private final ComponentContext context;
+    private final Object component;
+
+    public ComponentRemovedEvent(ComponentContext context, Object component) {
+        this.context = context;
+        this.component = component;
+    }
+
+    /**
+     * @return The context of the removed component.
+     */
+    public ComponentContext getContext() {
+        return context;
+    }
+
+    /**
+     * @return The removed component object.
+     */
+    public Object getComponent() {
+        return component;
+    }
+}
@@ -21,12 +21,32 @@ import org.terasology.kallisti.base.util.KallistiReflect;
 import org.terasology.kallisti.base.util.CollectionBackedMultiValueMap;
 import org.terasology.kallisti.base.util.MultiValueMap;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.BiConsumer;
 
 /**
  * The base class for a Machine, implementing component management logic.
+ *
+ * Threading contract:
+ * <ul>
+ * <li>A given Machine is confined to one thread at a time. Component
+ * management (registerRules, addComponent(s), removeComponent), lookups,
+ * initialize, start, stop and tick must not be called concurrently on the
+ * same Machine; handing a Machine over to another thread is fine as long
+ * as the hand-off establishes a happens-before relationship (for example,
+ * by submitting the work to an ExecutorService).</li>
+ * <li>Different Machines may be constructed, mutated and ticked from
+ * different threads in parallel. All state shared between Machines (the
+ * per-class hierarchy and component interface caches) is thread-safe.</li>
+ * <li>getState() may be called from any thread.</li>
+ * </ul>
+ *
+ * Subclasses document any further methods which are safe to call from
+ * any thread.
  */
 public abstract class Machine {
     public enum MachineState {
@@ -35,139 +55,243 @@ public abstract class Machine {
         STOPPED
     }
 
-    private interface Rule {
-        int getPriority();
-        Class[] getInput();
-        Type[] getInputGeneric();
-        Class getOutput();
-        Object invoke(Object... input) throws Throwable;
-    }
+    /**
+     * A component rule, compiled at registration time into a MethodHandle
+     * taking its arguments as an Object array.
+     */
+    private abstract static class Rule {
+        private static final MethodType INVOKER_TYPE = MethodType.methodType(Object.class, Object[].class);
 
-    private static class RuleMethod implements Rule {
-        private final Object parent;
-        private final Method method;
+        private final MethodHandle invoker;
+        private final Class[] input;
+        private final Class[] inputWrapped;
         private final int priority;
 
-        RuleMethod(Object parent, Method method, int priority) {
-            this.parent = parent;
-            this.method = method;
+        Rule(MethodHandle handle, Class[] input, int priority) {
+            this.invoker = handle.asFixedArity()
+                    .asSpreader(Object[].class, input.length)
+                    .asType(INVOKER_TYPE);
+            this.input = input;
+            this.inputWrapped = new Class[input.length];
+            for (int i = 0; i < input.length; i++) {
+                inputWrapped[i] = MethodType.methodType(input[i]).wrap().returnType();
+            }
             this.priority = priority;
         }
 
-        @Override
-        public Class getOutput() {
-            return method.getReturnType();
+        int getPriority() {
+            return priority;
         }
 
-        @Override
-        public Class[] getInput() {
-            return method.getParameterTypes();
+        Class[] getInput() {
+            return input;
         }
 
-        @Override
-        public Type[] getInputGeneric() {
-            return method.getGenericParameterTypes();
-        }
+        abstract Type[] getInputGeneric();
 
-        @Override
-        public Object invoke(Object... input) throws Throwable {
-            return method.invoke(parent, input);
+        abstract Class getOutput();
+
+        /**
+         * Check whether the rule accepts the given arguments, without
+         * invoking it.
+         *
+         * @param args The arguments.
+         * @return Whether or not invoke() can be called with the arguments.
+         */
+        boolean canInvoke(Object[] args) {
+            if (args.length != input.length) {
+                return false;
+            }
+
+            for (int i = 0; i < args.length; i++) {
+                if (args[i] == null ? input[i].isPrimitive() : !inputWrapped[i].isInstance(args[i])) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
-        @Override
-        public int getPriority() {
-            return priority;
+        Object invoke(Object[] args) throws Throwable {
+            return (Object) invoker.invokeExact(args);
         }
     }
 
-    private static class RuleConstructor implements Rule {
-        private final Constructor method;
-        private final int priority;
+    private static class RuleMethod extends Rule {
+        private final Method method;
 
-        RuleConstructor(Constructor method, int priority) {
+        RuleMethod(Object parent, Method method, int priority) throws IllegalAccessException {
+            super(unreflect(parent, method), method.getParameterTypes(), priority);
             this.method = method;
-            this.priority = priority;
         }
 
-        @Override
-        public Class getOutput() {
-            return method.getDeclaringClass();
+        private static MethodHandle unreflect(Object parent, Method method) throws IllegalAccessException {
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return parent != null ? handle.bindTo(parent) : handle;
         }
 
         @Override
-        public Class[] getInput() {
-            return method.getParameterTypes();
+        Class getOutput() {
+            return method.getReturnType();
         }
 
         @Override
-        public Type[] getInputGeneric() {
+        Type[] getInputGeneric() {
             return method.getGenericParameterTypes();
         }
+    }
+
+    private static class RuleConstructor extends Rule {
+        private final Constructor method;
+
+        RuleConstructor(Constructor method, int priority) throws IllegalAccessException {
+            super(unreflect(method), method.getParameterTypes(), priority);
+            this.method = method;
+        }
+
+        private static MethodHandle unreflect(Constructor method) throws IllegalAccessException {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(method);
+        }
 
         @Override
-        public Object invoke(Object... input) throws Throwable {
-            return method.newInstance(input);
+        Class getOutput() {
+            return method.getDeclaringClass();
         }
 
         @Override
-        public int getPriority() {
-            return priority;
+        Type[] getInputGeneric() {
+            return method.getGenericParameterTypes();
+        }
+    }
+
+    /**
+     * A creation rule, alongside its input signature pre-computed at
+     * registration time.
+     */
+    private static class CreationRule {
+        private final Rule rule;
+        private final Class[] inputs;
+        private final boolean[] optional;
+        private int order;
+
+        CreationRule(Rule rule) {
+            this.rule = rule;
+
+            Class[] inp = rule.getInput();
+            Type[] inpGeneric = rule.getInputGeneric();
+            this.inputs = new Class[inp.length];
+            this.optional = new boolean[inp.length];
+
+            for (int i = 0; i < inp.length; i++) {
+                Class c = inp[i];
+                if (c == Optional.class && inpGeneric[i] instanceof ParameterizedType) {
+                    optional[i] = true;
+                    c = (Class) (((ParameterizedType) inpGeneric[i]).getActualTypeArguments()[0]);
+                }
+                inputs[i] = c;
+            }
         }
     }
 
     private static class ComponentEntry {
         private final ComponentContext context;
         private final Object object;
+        // The component entries this entry was derived from by a rule, and
+        // the ones derived from it in turn.
+        private final List<ComponentEntry> inputs;
+        private final List<ComponentEntry> derived;
+        // Set once the creation rules have seen this entry.
+        private boolean resolved;
+        private boolean removed;
 
         public ComponentEntry(ComponentContext context, Object object) {
             this.context = context;
             this.object = object;
+            this.inputs = new ArrayList<>(0);
+            this.derived = new ArrayList<>(0);
         }
+    }
 
-        @Override
-        public int hashCode() {
-            return 31 * context.hashCode() + object.hashCode();
-        }
+    protected final ComponentEventHandler eventHandler;
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof ComponentEntry)) {
-                return false;
-            } else {
-                return ((ComponentEntry) o).context.equals(context)
-                        && ((ComponentEntry) o).object.equals(object);
+    // Initialized by addComponent();
+    private static class ComponentSnapshot {
+        private final int version;
+        private final ComponentEntry[] entries;
+        private final List<Object> objects;
+        private final List<ComponentContext> contexts;
+
+        public ComponentSnapshot(int version, Collection<ComponentEntry> entryCollection) {
+            this.version = version;
+            this.entries = entryCollection.toArray(new ComponentEntry[0]);
+
+            Object[] objectArray = new Object[entries.length];
+            ComponentContext[] contextArray = new ComponentContext[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                objectArray[i] = entries[i].object;
+                contextArray[i] = entries[i].context;
             }
+
+            this.objects = Collections.unmodifiableList(Arrays.asList(objectArray));
+            this.contexts = Collections.unmodifiableList(Arrays.asList(contextArray));
         }
     }
 
-    protected final ComponentEventHandler eventHandler;
-
-    // Initialized by addComponent();
-    private final List<ComponentEntry> entries;
+    private final Set<ComponentEntry> entries;
     private final Map<Object, ComponentEntry> entriesByObject;
+    private final Map<ComponentContext, List<ComponentEntry>> entriesByContext;
     private final Map<Class, Map<ComponentContext, ComponentEntry>> entryClassContextTable;
 
+    // Read-only views of the components, rebuilt lazily whenever
+    // componentsVersion has moved on.
+    private final Map<Class, ComponentSnapshot> snapshotsByClass;
+    private ComponentSnapshot allComponentsSnapshot;
+    private int componentsVersion;
+
     // Used by .initialize()
     private final MultiValueMap<Class, Object> nonEntryObjectsByClass;
+    private final Set<Object> resolvedNonEntryObjects;
 
     // Initialized by registerRules()
-    private final List<Rule> creationRules;
+    private final List<CreationRule> creationRules;
+    private final MultiValueMap<Class, CreationRule> creationRulesByInput;
+    private final List<CreationRule> pendingRules;
     private final MultiValueMap<Class, Rule> linkingRules;
     private boolean rulesListDirty;
 
-    // Initialized in .initialize();
-    protected MachineState state;
+    // Components and non-component objects not yet seen by the creation
+    // rules, in order of addition.
+    private final Deque<Object> pendingObjects;
+    private boolean resolvingRules;
+
+    // Initialized in .initialize(); volatile, as getState() may be called
+    // from any thread.
+    protected volatile MachineState state;
+
+    private volatile Runnable wakeupListener;
+
+    // Time of the ticks whose tick events were held back by
+    // deferTickEvents(), delivered with the next tick event.
+    private double deferredTickTime;
 
     public Machine() {
         eventHandler = new ComponentEventHandler();
 
         creationRules = new ArrayList<>();
+        creationRulesByInput = new CollectionBackedMultiValueMap<>(new IdentityHashMap<>(), ArrayList::new);
+        pendingRules = new ArrayList<>();
         linkingRules = new CollectionBackedMultiValueMap<>(new IdentityHashMap<>(), ArrayList::new);
 
-        entries = new ArrayList<>();
+        entries = new LinkedHashSet<>();
         entriesByObject = new IdentityHashMap<>();
+        entriesByContext = new HashMap<>();
         entryClassContextTable = new HashMap<>();
+        snapshotsByClass = new IdentityHashMap<>();
         nonEntryObjectsByClass = new CollectionBackedMultiValueMap<>(new IdentityHashMap<>(), ArrayList::new);
+        resolvedNonEntryObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+        pendingObjects = new ArrayDeque<>();
 
         state = MachineState.UNINITIAILIZED;
 
@@ -175,42 +299,86 @@ public abstract class Machine {
     }
 
     /**
-     * @return All component objects inside a given Machine.
+     * @return All component objects inside a given Machine, as a read-only
+     * snapshot.
      */
     public Iterable<? extends Object> getAllComponents() {
-        return entries.stream().map((m) -> m.object).collect(Collectors.toList());
+        return getAllComponentsSnapshot().objects;
     }
 
     /**
-     * @return All component contexts inside a given Machine.
+     * @return All component contexts inside a given Machine, as a read-only
+     * snapshot.
      */
     public Iterable<ComponentContext> getAllComponentContexts() {
-        return entries.stream().map((m) -> m.context).collect(Collectors.toList());
+        return getAllComponentsSnapshot().contexts;
+    }
+
+    /**
+     * The component version is incremented every time a component is added
+     * to or removed from the Machine. Callers may use it to tell whether
+     * data they derived from the component set is still current.
+     *
+     * @return The current component version.
+     */
+    public int getComponentVersion() {
+        return componentsVersion;
+    }
+
+    private ComponentSnapshot getAllComponentsSnapshot() {
+        ComponentSnapshot snapshot = allComponentsSnapshot;
+        if (snapshot == null || snapshot.version != componentsVersion) {
+            snapshot = allComponentsSnapshot = new ComponentSnapshot(componentsVersion, entries);
+        }
+        return snapshot;
+    }
+
+    private ComponentSnapshot getSnapshot(Class c) {
+        ComponentSnapshot snapshot = snapshotsByClass.get(c);
+        if (snapshot == null || snapshot.version != componentsVersion) {
+            Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
+            snapshot = new ComponentSnapshot(componentsVersion, m != null ? m.values() : Collections.emptyList());
+            snapshotsByClass.put(c, snapshot);
+        }
+        return snapshot;
     }
 
     private void registerRules(Object parent, Method m) throws IllegalArgumentException {
         ComponentRule rule = m.getAnnotation(ComponentRule.class);
         if (rule != null) {
-            RuleMethod r = new RuleMethod(parent, m, rule.priority());
-            if (r.method.getParameterCount() == 0) {
+            if (m.getParameterCount() == 0) {
                 throw new IllegalArgumentException("Rule must accept a parameter! If you want to always add a component to a machine, do so directly.");
             }
 
+            RuleMethod r;
+            try {
+                r = new RuleMethod(parent, m, rule.priority());
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Could not access rule " + m + "!", e);
+            }
+
             if (r.method.isVarArgs()) {
                 if (r.method.getParameterCount() > 1) {
                     throw new IllegalArgumentException("Linking rule may only have one variable argument!");
                 } else {
-                    Class c = r.getInput()[0];
+                    Class c = r.getInput()[0].getComponentType();
                     linkingRules.add(c, r);
                 }
             } else {
-                creationRules.add(r);
+                addCreationRule(r);
             }
         }
 
         rulesListDirty = true;
     }
 
+    private void addCreationRule(Rule r) {
+        CreationRule rule = new CreationRule(r);
+        creationRules.add(rule);
+        pendingRules.add(rule);
+        rulesListDirty = true;
+    }
+
     /**
      * Register the component rules present in static methods and constructors
      * of the given class.
@@ -234,16 +402,21 @@ public abstract class Machine {
                     throw new IllegalArgumentException("Rule must accept a parameter! If you want to always add a component to a machine, do so directly.");
                 }
 
-                RuleConstructor rule = new RuleConstructor(cc, ruleC.priority());
+                RuleConstructor rule;
+                try {
+                    rule = new RuleConstructor(cc, ruleC.priority());
+                } catch (IllegalAccessException e) {
+                    throw new IllegalArgumentException("Could not access rule " + cc + "!", e);
+                }
 
                 if (cc.isVarArgs()) {
                     if (cc.getParameterCount() > 1) {
                         throw new IllegalArgumentException("Linking rule may only have one variable argument!");
                     } else {
-                        linkingRules.add(cc.getDeclaringClass(), rule);
+                        linkingRules.add(cc.getParameterTypes()[0].getComponentType(), rule);
                     }
                 } else {
-                    creationRules.add(rule);
+                    addCreationRule(rule);
                 }
             }
         }
@@ -281,14 +454,31 @@ public abstract class Machine {
                 return o[0];
             }
 
-            for (Rule r : linkingRules.values(o.getClass())) {
-                try {
-                    Object result = r.invoke(o);
+            for (Class c : KallistiReflect.hierarchy(o[0].getClass())) {
+                Collection<Rule> rules = linkingRules.values(c);
+                if (rules.isEmpty() || !isInstanceOfAll(c, o)) {
+                    continue;
+                }
+
+                Object[] input = (Object[]) Array.newInstance(c, o.length);
+                System.arraycopy(o, 0, input, 0, o.length);
+                Object[] args = new Object[] { input };
+
+                for (Rule r : rules) {
+                    if (!r.canInvoke(args)) {
+                        continue;
+                    }
+
+                    Object result;
+                    try {
+                        result = r.invoke(args);
+                    } catch (Throwable e) {
+                        throw new RuntimeException(e);
+                    }
+
                     if (result != null) {
                         return (T) result;
                     }
-                } catch (Throwable e) {
-                    // pass?
                 }
             }
 
@@ -296,6 +486,15 @@ public abstract class Machine {
         }
     }
 
+    private static boolean isInstanceOfAll(Class c, Object[] o) {
+        for (Object oo : o) {
+            if (!c.isInstance(oo)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Add a non-component object accessible to components during creation
      * via ComponentRules.
@@ -309,16 +508,47 @@ public abstract class Machine {
      * @return Whether the addition was successful.
      */
     protected boolean addNonComponentObject(Object o) {
-        for (Class c : KallistiReflect.classes(o.getClass())) {
+        boolean added = false;
+        for (Class c : KallistiReflect.hierarchy(o.getClass())) {
             if (!nonEntryObjectsByClass.contains(c, o)) {
                 nonEntryObjectsByClass.add(c, o);
+                added = true;
             }
         }
 
+        if (added) {
+            pendingObjects.add(o);
+        }
+
         return true;
     }
 
-    private static final Map<Class, Boolean> isComponentItfMap = new HashMap<>();
+    private static final ClassValue<Boolean> IS_COMPONENT_INTERFACE = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class cl : KallistiReflect.hierarchy(type)) {
+                if (cl.getAnnotation(ComponentInterface.class) != null) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    };
+
+    private static final ClassValue<Class[]> COMPONENT_INTERFACES = new ClassValue<Class[]>() {
+        @Override
+        protected Class[] computeValue(Class<?> type) {
+            List<Class> classes = new ArrayList<>();
+            for (Class cl : KallistiReflect.hierarchy(type)) {
+                if (isComponentInterface(cl)) {
+                    classes.add(cl);
+                }
+            }
+
+            return classes.toArray(new Class[0]);
+        }
+    };
 
     /**
      * @param c Given class.
@@ -326,16 +556,17 @@ public abstract class Machine {
      * with @ComponentInterface and/or implements one, false otherwise.
      */
     private static boolean isComponentInterface(Class c) {
-        return isComponentItfMap.computeIfAbsent(c,
-                (cc) -> {
-                    for (Class cl : KallistiReflect.classes(cc)) {
-                        if (cl.getAnnotation(ComponentInterface.class) != null) {
-                            return true;
-                        }
-                    }
+        return IS_COMPONENT_INTERFACE.get(c);
+    }
 
-                    return false;
-                });
+    /**
+     * @param c Given class.
+     * @return All classes extended or implemented by the given class, itself
+     * included, for which isComponentInterface() is true. Must not be
+     * modified.
+     */
+    private static Class[] getComponentInterfaces(Class c) {
+        return COMPONENT_INTERFACES.get(c);
     }
 
     /**
@@ -353,147 +584,386 @@ public abstract class Machine {
         ComponentEntry entry = new ComponentEntry(context, o);
         Class objectClass = entry.object.getClass();
 
-        for (Class c : KallistiReflect.classes(objectClass)) {
-            if (isComponentInterface(c)) {
-                Map<ComponentContext, ComponentEntry> m = entryClassContextTable.computeIfAbsent(c, (cc -> new HashMap<>()));
-                if (m.containsKey(context)) {
-                    return false;
-                }
+        Class[] componentInterfaces = getComponentInterfaces(objectClass);
+
+        for (Class c : componentInterfaces) {
+            Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
+            if (m != null && m.containsKey(context)) {
+                return false;
             }
         }
 
+        componentsVersion++;
         entries.add(entry);
         entriesByObject.put(entry.object, entry);
+        entriesByContext.computeIfAbsent(context, (cc -> new ArrayList<>(1))).add(entry);
 
-        for (Class c : KallistiReflect.classes(objectClass)) {
-            if (isComponentInterface(c)) {
-                Map<ComponentContext, ComponentEntry> m = entryClassContextTable.computeIfAbsent(c, (cc -> new HashMap<>()));
-                m.put(context, entry);
-            }
+        for (Class c : componentInterfaces) {
+            Map<ComponentContext, ComponentEntry> m = entryClassContextTable.computeIfAbsent(c, (cc -> new HashMap<>()));
+            m.put(context, entry);
         }
 
-        // Apply rules
-        if (rulesListDirty) {
-            // Sort rules
-            Comparator<Rule> sorter = (rule1, rule2) -> Integer.compare(rule2.getPriority(), rule1.getPriority());
-            creationRules.sort(sorter);
-            for (Class c : linkingRules.keys()) {
-                ((List<Rule>) linkingRules.values(c)).sort(sorter);
-            }
+        pendingObjects.add(entry);
 
-            rulesListDirty = false;
+        // Components derived while applying rules are only queued; the
+        // outermost call resolves them.
+        if (!resolvingRules) {
+            resolveRules();
         }
 
-        boolean addedNewComponents = true;
-        while (addedNewComponents) {
-            addedNewComponents = false;
+        return true;
+    }
 
-            for (Rule r : creationRules) {
-                List<List<Object>> baseComponents = new ArrayList<>();
-                int permutations = 1;
+    /**
+     * Add multiple components to the Machine at once. The components are
+     * all registered first, and the component rules are then resolved in a
+     * single pass, which is considerably cheaper than calling addComponent()
+     * for every component.
+     *
+     * @see #addComponent(ComponentContext, Object)
+     *
+     * @param components The components to add, keyed by their contexts.
+     * @return Whether or not all of the additions were successful.
+     */
+    public boolean addComponents(Map<ComponentContext, Object> components) {
+        boolean wasResolvingRules = resolvingRules;
+        boolean result = true;
+
+        resolvingRules = true;
+        try {
+            for (Map.Entry<ComponentContext, Object> entry : components.entrySet()) {
+                result &= addComponent(entry.getKey(), entry.getValue());
+            }
+        } finally {
+            resolvingRules = wasResolvingRules;
+        }
 
-                Class[] inp = r.getInput();
-                Type[] inpGeneric = r.getInputGeneric();
+        if (!resolvingRules) {
+            resolveRules();
+        }
 
-                for (int i = 0; i < inp.length; i++) {
-                    Class c = inp[i];
-                    boolean required = true;
-                    if (c == Optional.class && inpGeneric[i] instanceof ParameterizedType) {
-                        required = false;
-                        c = (Class) (((ParameterizedType) inpGeneric[i]).getActualTypeArguments()[0]);
-                    }
+        return result;
+    }
 
-                    Collection ccol = entryClassContextTable.getOrDefault(c, Collections.emptyMap()).values();
-                    if (ccol.isEmpty()) {
-                        ccol = nonEntryObjectsByClass.values(c);
+    /**
+     * Apply the creation rules to every pending component and non-component
+     * object, until no new components are derived.
+     *
+     * Every permutation of rule inputs is evaluated exactly once: when its
+     * last member is resolved. As such, only permutations involving the
+     * newly resolved object are evaluated for each object.
+     *
+     * Once all of them are resolved and their listeners registered, a
+     * ComponentAddedEvent is emitted for every resolved component, in the
+     * order they were resolved; a component is therefore announced after
+     * the components it was derived from, and listeners can already see
+     * the components derived from it.
+     */
+    private void resolveRules() {
+        List<ComponentEntry> resolvedEntries = new ArrayList<>();
+        resolvingRules = true;
+        try {
+            if (rulesListDirty) {
+                // Sort rules
+                Comparator<CreationRule> sorter = (rule1, rule2) -> Integer.compare(rule2.rule.getPriority(), rule1.rule.getPriority());
+                Comparator<Rule> linkingSorter = (rule1, rule2) -> Integer.compare(rule2.getPriority(), rule1.getPriority());
+                creationRules.sort(sorter);
+                for (Class c : new ArrayList<>(linkingRules.keys())) {
+                    List<Rule> rules = new ArrayList<>(linkingRules.values(c));
+                    rules.sort(linkingSorter);
+                    linkingRules.remove(c);
+                    for (Rule r : rules) {
+                        linkingRules.add(c, r);
                     }
+                }
 
-                    if (required || !ccol.isEmpty()) {
-                        permutations *= ccol.size();
-                        if (permutations == 0) {
-                            break;
+                creationRulesByInput.clear();
+                for (int i = 0; i < creationRules.size(); i++) {
+                    CreationRule r = creationRules.get(i);
+                    r.order = i;
+                    for (Class c : r.inputs) {
+                        if (!creationRulesByInput.contains(c, r)) {
+                            creationRulesByInput.add(c, r);
                         }
                     }
+                }
 
-                    baseComponents.add(ccol instanceof List ? (List) ccol : new ArrayList<>(ccol));
+                pendingRules.sort(sorter);
+                rulesListDirty = false;
+            }
+
+            // Rules registered since the last resolution have not seen any
+            // of the already resolved objects yet.
+            for (CreationRule r : pendingRules) {
+                applyRule(r, null, -1);
+            }
+            pendingRules.clear();
+
+            List<Object> resolvedComponents = new ArrayList<>();
+            Object o;
+            while ((o = pendingObjects.poll()) != null) {
+                if (o instanceof ComponentEntry) {
+                    ComponentEntry entry = (ComponentEntry) o;
+                    entry.resolved = true;
+                    applyRules(entry.object, entry);
+                    resolvedEntries.add(entry);
+                    resolvedComponents.add(entry.object);
+                } else {
+                    resolvedNonEntryObjects.add(o);
+                    applyRules(o, null);
                 }
+            }
 
-                for (int i = 0; i < permutations; i++) {
-                    List<ComponentContext> contexts = new ArrayList<>();
-                    Object[] params = new Object[baseComponents.size()];
-                    int iCurr = i;
-                    for (int j = 0; j < params.length; j++) {
-                        if (!baseComponents.get(j).isEmpty()) {
-                            Object oFound = baseComponents.get(j).get(iCurr % baseComponents.get(j).size());
-                            if (oFound instanceof ComponentEntry) {
-                                ComponentEntry entryFound = (ComponentEntry) oFound;
-                                contexts.add(entryFound.context);
-                                params[j] = entryFound.object;
-                            } else {
-                                // non-entry object
-                                params[j] = oFound;
-                            }
+            eventHandler.registerAll(resolvedComponents);
+        } finally {
+            resolvingRules = false;
+        }
 
-                            if (inp[j] == Optional.class) {
-                                params[j] = Optional.ofNullable(params[j]);
-                            }
+        if (eventHandler.hasListeners(ComponentAddedEvent.class)) {
+            for (ComponentEntry entry : resolvedEntries) {
+                // Listeners may have removed components in the meantime.
+                if (!entry.removed) {
+                    eventHandler.emit(new ComponentAddedEvent(entry.context, entry.object));
+                }
+            }
+        }
+    }
 
-                            iCurr /= baseComponents.get(j).size();
-                        }
+    private void applyRules(Object o, ComponentEntry entry) {
+        List<CreationRule> rules = new ArrayList<>();
+        Class[] classes = entry != null ? getComponentInterfaces(o.getClass()) : KallistiReflect.hierarchy(o.getClass());
+        for (Class c : classes) {
+            for (CreationRule r : creationRulesByInput.values(c)) {
+                if (!rules.contains(r)) {
+                    rules.add(r);
+                }
+            }
+        }
+
+        if (rules.isEmpty()) {
+            return;
+        }
+
+        rules.sort(Comparator.comparingInt((r) -> r.order));
+        for (CreationRule r : rules) {
+            for (int i = 0; i < r.inputs.length; i++) {
+                if (!r.inputs[i].isInstance(o)) {
+                    continue;
+                }
+
+                boolean matches;
+                if (entry != null) {
+                    matches = isComponentInterface(r.inputs[i]);
+                } else {
+                    // Non-component objects are only used if no component
+                    // of a given class is present.
+                    matches = !hasResolvedComponents(r.inputs[i]);
+                }
+
+                if (matches) {
+                    applyRule(r, entry != null ? entry : o, i);
+                }
+            }
+        }
+    }
+
+    private boolean hasResolvedComponents(Class c) {
+        Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
+        if (m != null) {
+            for (ComponentEntry e : m.values()) {
+                if (e.resolved) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gather the candidates for a given rule input.
+     *
+     * @param c The input class.
+     * @param exclude The object to exclude, or null.
+     * @return A list of ComponentEntries or non-component objects.
+     */
+    private List<Object> getRuleCandidates(Class c, Object exclude) {
+        List<Object> list = new ArrayList<>();
+        Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
+        boolean found = false;
+        if (m != null) {
+            for (ComponentEntry e : m.values()) {
+                if (e.resolved) {
+                    found = true;
+                    if (e != exclude) {
+                        list.add(e);
                     }
+                }
+            }
+        }
 
-                    try {
-                        Object result = r.invoke(params);
-                        if (result != null) {
-                            ComponentContext contextJoined = join(contexts.toArray(new ComponentContext[0]));
-                            if (getComponent(contextJoined, result.getClass()) == null) {
-                                addedNewComponents |= addComponent(contextJoined, result);
+        if (!found) {
+            for (Object o : nonEntryObjectsByClass.values(c)) {
+                if (o != exclude && resolvedNonEntryObjects.contains(o)) {
+                    list.add(o);
+                }
+            }
+        }
+
+        return list;
+    }
+
+    /**
+     * Evaluate all permutations of a given rule's inputs, optionally
+     * restricted to the ones containing a given object.
+     *
+     * To ensure each permutation is only evaluated once, inputs preceding
+     * the fixed one do not consider the fixed object.
+     *
+     * @param r The rule.
+     * @param fixed The ComponentEntry or non-component object to fix, or null.
+     * @param fixedPos The input position of the fixed object, or -1.
+     */
+    private void applyRule(CreationRule r, Object fixed, int fixedPos) {
+        int count = r.inputs.length;
+        List<Object>[] baseComponents = new List[count];
+        int permutations = 1;
+
+        for (int i = 0; i < count; i++) {
+            List<Object> ccol;
+            if (i == fixedPos) {
+                ccol = Collections.singletonList(fixed);
+            } else {
+                ccol = getRuleCandidates(r.inputs[i], i < fixedPos ? fixed : null);
+            }
+
+            if (ccol.isEmpty()) {
+                if (!r.optional[i]) {
+                    return;
+                }
+                ccol = Collections.singletonList(null);
+            }
+
+            permutations *= ccol.size();
+            baseComponents[i] = ccol;
+        }
+
+        for (int i = 0; i < permutations; i++) {
+            List<ComponentContext> contexts = new ArrayList<>();
+            List<ComponentEntry> inputs = new ArrayList<>();
+            Object[] params = new Object[count];
+            int iCurr = i;
+            for (int j = 0; j < count; j++) {
+                Object oFound = baseComponents[j].get(iCurr % baseComponents[j].size());
+                if (oFound instanceof ComponentEntry) {
+                    ComponentEntry entryFound = (ComponentEntry) oFound;
+                    contexts.add(entryFound.context);
+                    inputs.add(entryFound);
+                    params[j] = entryFound.object;
+                } else {
+                    // non-entry object
+                    params[j] = oFound;
+                }
+
+                if (r.optional[j]) {
+                    params[j] = Optional.ofNullable(params[j]);
+                }
+
+                iCurr /= baseComponents[j].size();
+            }
+
+            try {
+                Object result = r.rule.invoke(params);
+                if (result != null) {
+                    ComponentContext contextJoined = join(contexts.toArray(new ComponentContext[0]));
+                    if (getComponent(contextJoined, result.getClass()) == null
+                            && addComponent(contextJoined, result)) {
+                        ComponentEntry resultEntry = entriesByObject.get(result);
+                        if (resultEntry != null) {
+                            for (ComponentEntry input : inputs) {
+                                resultEntry.inputs.add(input);
+                                input.derived.add(resultEntry);
                             }
                         }
-                    } catch (Throwable e) {
-                        // TODO: forward
-                        throw new RuntimeException(e);
                     }
                 }
+            } catch (Throwable e) {
+                // TODO: forward
+                throw new RuntimeException(e);
             }
         }
-
-        eventHandler.register(o);
-
-        return true;
     }
 
     /**
-     * Removes a component from the Machine.
+     * Removes a component from the Machine. All components which were
+     * derived from it by component rules, directly or indirectly, are
+     * removed as well.
      *
      * @param context The component's context.
      * @return Whether or not the component has been removed.
      */
     public boolean removeComponent(ComponentContext context) {
-        // TODO: Remove joined contexts?
-        List<ComponentEntry> entriesToRemove = entries.stream()
-                .filter((a) -> a.context.equals(context))
-                .collect(Collectors.toList());
-
-        if (entriesToRemove.isEmpty()) {
+        List<ComponentEntry> entriesToRemove = entriesByContext.get(context);
+        if (entriesToRemove == null || entriesToRemove.isEmpty()) {
             return false;
         }
 
-        for (ComponentEntry e : entriesToRemove) {
-            entries.remove(e);
-            entriesByObject.remove(e.object);
-
-            for (Class c : KallistiReflect.classes(e.object.getClass())) {
-                Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
-                if (m != null) {
-                    m.remove(context);
-                }
+        Deque<ComponentEntry> queue = new ArrayDeque<>(entriesToRemove);
+        ComponentEntry e;
+        while ((e = queue.poll()) != null) {
+            if (!e.removed) {
+                removeEntry(e);
+                queue.addAll(e.derived);
             }
         }
 
         return true;
     }
 
+    private void removeEntry(ComponentEntry e) {
+        e.removed = true;
+        componentsVersion++;
+        entries.remove(e);
+        entriesByObject.remove(e.object);
+        pendingObjects.remove(e);
+
+        List<ComponentEntry> contextEntries = entriesByContext.get(e.context);
+        if (contextEntries != null) {
+            contextEntries.remove(e);
+            if (contextEntries.isEmpty()) {
+                entriesByContext.remove(e.context);
+            }
+        }
+
+        for (Class c : getComponentInterfaces(e.object.getClass())) {
+            Map<ComponentContext, ComponentEntry> m = entryClassContextTable.get(c);
+            if (m != null) {
+                m.remove(e.context, e);
+            }
+        }
+
+        for (ComponentEntry input : e.inputs) {
+            input.derived.remove(e);
+        }
+
+        eventHandler.unregister(e.object);
+        onComponentRemoved(e.context, e.object);
+
+        if (eventHandler.hasListeners(ComponentRemovedEvent.class)) {
+            eventHandler.emit(new ComponentRemovedEvent(e.context, e.object));
+        }
+    }
+
+    /**
+     * Called after a component has been removed from the Machine, including
+     * components removed because a component they were derived from was.
+     *
+     * @param context The removed component's context.
+     * @param o The removed component object.
+     */
+    protected void onComponentRemoved(ComponentContext context, Object o) {
+
+    }
+
     /**
      * Initialize the machine.
      */
@@ -529,13 +999,12 @@ public abstract class Machine {
      *
      * @param c The class of the component.
      * @param <T> The type of the component.
-     * @return The component, or null if not present.
+     * @return A read-only snapshot of the components; it is not updated
+     * when components are later added or removed.
      */
     @SuppressWarnings("unchecked")
     public <T> Collection<T> getComponentsByClass(Class<T> c) {
-        return entryClassContextTable
-                    .getOrDefault(c, Collections.emptyMap())
-                    .values().stream().map((e) -> (T) e.object).collect(Collectors.toList());
+        return (Collection<T>) getSnapshot(c).objects;
     }
 
     /**
@@ -543,22 +1012,57 @@ public abstract class Machine {
      * (or a subclass/implementation).
      *
      * @param c The class of the component.
-     * @return The component context, or null if not present.
+     * @return A read-only snapshot of the component contexts; it is not
+     * updated when components are later added or removed.
      */
     public Collection<ComponentContext> getContextsByClass(Class c) {
-        return entryClassContextTable
-                .getOrDefault(c, Collections.emptyMap())
-                .values().stream().map((e) -> e.context).collect(Collectors.toList());
+        return getSnapshot(c).contexts;
+    }
+
+    /**
+     * Call a consumer for every component of a given class type
+     * (or a subclass/implementation), without allocating an intermediate
+     * collection. Components added or removed by the consumer do not
+     * affect the ongoing iteration.
+     *
+     * @param c The class of the component.
+     * @param consumer The consumer, receiving each component's context and
+     *                 object.
+     * @param <T> The type of the component.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void forEachComponent(Class<T> c, BiConsumer<ComponentContext, ? super T> consumer) {
+        ComponentEntry[] snapshotEntries = getSnapshot(c).entries;
+        for (ComponentEntry entry : snapshotEntries) {
+            consumer.accept(entry.context, (T) entry.object);
+        }
+    }
+
+    /**
+     * Call a consumer for every component inside the Machine, without
+     * allocating an intermediate collection.
+     *
+     * @see #forEachComponent(Class, BiConsumer)
+     *
+     * @param consumer The consumer, receiving each component's context and
+     *                 object.
+     */
+    public void forEachComponent(BiConsumer<ComponentContext, Object> consumer) {
+        ComponentEntry[] snapshotEntries = getAllComponentsSnapshot().entries;
+        for (ComponentEntry entry : snapshotEntries) {
+            consumer.accept(entry.context, entry.object);
+        }
     }
 
     /**
      * Get the context of a given component object.
      *
      * @param component The component object.
-     * @return The context of it.
+     * @return The context of it, or null if not present.
      */
     public ComponentContext getContext(Object component) {
-        return entriesByObject.get(component).context;
+        ComponentEntry entry = entriesByObject.get(component);
+        return entry != null ? entry.context : null;
     }
 
     /**
@@ -606,12 +1110,82 @@ public abstract class Machine {
      * @throws Exception
      */
     public final boolean tick(double time) throws Exception {
-        eventHandler.emit(new ComponentTickEvent(time));
+        if (eventHandler.hasListeners(ComponentTickEvent.class)) {
+            if (deferTickEvents()) {
+                deferredTickTime += time;
+            } else {
+                eventHandler.emit(new ComponentTickEvent(deferredTickTime + time));
+                deferredTickTime = 0;
+            }
+        }
         return tickInternal(time);
     }
 
     protected abstract boolean tickInternal(double time) throws Exception;
 
+    /**
+     * Check whether tick events should be held back this tick, for instance
+     * because the machine's code is still running on another thread and
+     * listeners would race with it. The time of held back ticks is added to
+     * the next tick event delivered.
+     *
+     * @return Whether to hold back this tick's tick event.
+     */
+    protected boolean deferTickEvents() {
+        return false;
+    }
+
+    /**
+     * Get the time until the machine next has work to do. Hosts may skip
+     * ticking the machine until then, or until wakeUp() is called, and
+     * pass the total elapsed time to the next tick instead. Components of
+     * a skipped machine do not receive tick events, so implementations
+     * should return zero while components rely on them.
+     *
+     * @return The delay, in seconds; zero if the machine should be ticked
+     * every time, or positive infinity if it only needs to be ticked once
+     * woken up.
+     */
+    public double getWakeupDelay() {
+        return 0;
+    }
+
+    /**
+     * Run deferrable housekeeping work, such as garbage collection, while
+     * the machine is idle. Hosts which skip ticking idle machines may call
+     * this in between ticks, on the thread they would tick the machine on.
+     *
+     * @param deadlineNanos The System.nanoTime() value by which the work
+     *                      should be stopped.
+     * @return Whether there is more work to do.
+     */
+    public boolean idle(long deadlineNanos) {
+        return false;
+    }
+
+    /**
+     * Set the listener notified when the machine has work to do before its
+     * wakeup delay has elapsed. Used by hosts which skip ticking idle
+     * machines.
+     *
+     * @see #getWakeupDelay()
+     * @param listener The listener, or null.
+     */
+    public void setWakeupListener(Runnable listener) {
+        this.wakeupListener = listener;
+    }
+
+    /**
+     * Notify the host that the machine has work to do and should be ticked
+     * again as soon as possible. May be called from any thread.
+     */
+    public void wakeUp() {
+        Runnable listener = wakeupListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     /**
      * Get the persistence handler, if the machine can be persisted or unpersisted.
      *
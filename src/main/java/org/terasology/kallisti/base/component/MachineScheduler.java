@@ -0,0 +1,627 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ticks a set of running machines across a fixed set of worker threads.
+ *
+ * Machines are distributed among a fixed number of shards, each of which is
+ * ticked as a single unit of work; a machine stays in its shard for as long
+ * as it is scheduled. As every shard is only ever run by one thread at a
+ * time, and tick() waits for all shards to finish, each machine (and so its
+ * LuaState) is only touched by one thread at a time, as required by Machine.
+ *
+ * Every shard is pinned to a home worker, which ticks it first. With work
+ * stealing enabled, the default, a worker which is done with its own
+ * shards goes on to tick shards other workers have not started yet, so
+ * that a worker held up by slow machines does not hold up the whole tick;
+ * a machine then stays on its home thread unless its shard gets stolen.
+ * With work stealing disabled, every machine is always ticked by the same
+ * thread.
+ *
+ * Machines which report a wakeup delay longer than a tick are parked in a
+ * deadline-ordered heap, and not ticked again until their deadline arrives
+ * or they call Machine.wakeUp(); the next tick is then passed all of the
+ * time elapsed since their last one. The cost of a tick is therefore
+ * proportional to the number of awake machines.
+ *
+ * If an idle budget is set, each shard additionally spends up to that much
+ * time per tick on Machine.idle() work of its parked machines, after its
+ * awake machines have been ticked.
+ *
+ * Machines whose tick returns false, or whose tick or idle work throws an
+ * exception, are removed from the scheduler; exceptions are reported to the error listener or,
+ * if there is none, rethrown by tick().
+ *
+ * tick() itself is meant to be called from a single host thread; add() and
+ * remove() may be called from any thread and take effect on the next tick.
+ */
+public class MachineScheduler {
+    /**
+     * Listener notified when a machine takes longer to tick than the
+     * scheduler's per-machine budget.
+     */
+    @FunctionalInterface
+    public interface OverrunListener {
+        void onOverrun(Machine machine, long elapsedNanos);
+    }
+
+    /**
+     * Listener notified when a machine's tick or idle work throws an
+     * exception.
+     */
+    @FunctionalInterface
+    public interface ErrorListener {
+        void onError(Machine machine, Exception exception);
+    }
+
+    private static final class Slot {
+        private final Machine machine;
+        private final Shard shard;
+        private long lastTick, wakeTick;
+        // The slot's current entry in the parked heap, if parked; entries
+        // of slots woken up early are left in the heap and skipped.
+        private ParkedEntry parkedEntry;
+        private boolean idleQueued;
+
+        private Slot(Machine machine, Shard shard, long lastTick) {
+            this.machine = machine;
+            this.shard = shard;
+            this.lastTick = lastTick;
+        }
+    }
+
+    private static final class ParkedEntry {
+        private final Slot slot;
+        private final long wakeTick;
+
+        private ParkedEntry(Slot slot, long wakeTick) {
+            this.slot = slot;
+            this.wakeTick = wakeTick;
+        }
+    }
+
+    private final class Shard implements Runnable {
+        // Set while the shard waits to be run in the current tick.
+        private final AtomicBoolean pending = new AtomicBoolean();
+        private boolean scheduled;
+        private final List<Slot> slots = new ArrayList<>();
+        private final List<Slot> parking = new ArrayList<>();
+        // Parked slots which may have idle work left, in round-robin order.
+        private final Queue<Slot> idle = new ArrayDeque<>();
+        private long currentTick;
+
+        @Override
+        public void run() {
+            int kept = 0;
+            for (int i = 0; i < slots.size(); i++) {
+                Slot slot = slots.get(i);
+                Machine machine = slot.machine;
+                long start = System.nanoTime();
+                boolean keep;
+
+                try {
+                    keep = machine.tick(tickDuration * (currentTick - slot.lastTick));
+                } catch (Exception e) {
+                    reportError(machine, e);
+                    keep = false;
+                }
+
+                slot.lastTick = currentTick;
+
+                long elapsed = System.nanoTime() - start;
+                if (elapsed > machineBudgetNanos) {
+                    overrunMachineTicks.incrementAndGet();
+                    if (overrunListener != null) {
+                        overrunListener.onOverrun(machine, elapsed);
+                    }
+                }
+
+                // Finished and parking slots are dropped from the shard here;
+                // the scheduler picks them up once all shards are done.
+                if (!keep) {
+                    finished.add(machine);
+                } else {
+                    long wakeTicks = getWakeupTicks(machine.getWakeupDelay());
+                    if (wakeTicks > 1) {
+                        slot.wakeTick = wakeTicks == Long.MAX_VALUE ? Long.MAX_VALUE : currentTick + wakeTicks;
+                        parking.add(slot);
+                    } else {
+                        slots.set(kept++, slot);
+                    }
+                }
+            }
+
+            while (slots.size() > kept) {
+                slots.remove(slots.size() - 1);
+            }
+
+            runIdle();
+        }
+
+        private void runIdle() {
+            long budget = idleBudgetNanos;
+            if (budget <= 0) {
+                return;
+            }
+
+            long deadline = System.nanoTime() + budget;
+            Slot slot;
+            while (System.nanoTime() < deadline && (slot = idle.poll()) != null) {
+                boolean more;
+
+                // Slots unparked since being queued are ticked again instead.
+                if (slot.parkedEntry == null) {
+                    more = false;
+                } else {
+                    try {
+                        more = slot.machine.idle(deadline);
+                    } catch (Exception e) {
+                        reportError(slot.machine, e);
+                        finished.add(slot.machine);
+                        more = false;
+                    }
+                }
+
+                if (more) {
+                    idle.add(slot);
+                } else {
+                    slot.idleQueued = false;
+                }
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private final int index;
+        private long lastGeneration;
+
+        private Worker(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                long generation;
+                while ((generation = tickGeneration) == lastGeneration && !closed) {
+                    LockSupport.park(this);
+                }
+                if (closed) {
+                    return;
+                }
+                lastGeneration = generation;
+
+                for (int i = index; i < shards.length; i += workers.length) {
+                    runShard(shards[i]);
+                }
+
+                if (workStealing) {
+                    for (int j = 1; j < workers.length; j++) {
+                        for (int i = (index + j) % workers.length; i < shards.length; i += workers.length) {
+                            runShard(shards[i]);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void runShard(Shard shard) {
+            if (!shard.pending.compareAndSet(true, false)) {
+                return;
+            }
+
+            try {
+                shard.run();
+            } catch (Throwable t) {
+                errors.add(t);
+            } finally {
+                if (remainingShards.decrementAndGet() == 0) {
+                    LockSupport.unpark(tickThread);
+                }
+            }
+        }
+    }
+
+    private final double tickDuration;
+    private final Shard[] shards;
+    private final Thread[] workers;
+    private final Map<Machine, Slot> slotsByMachine;
+    private final PriorityQueue<ParkedEntry> parked;
+    private final Queue<Machine> added, removed, finished, woken;
+    private final Queue<Throwable> errors;
+    private final AtomicInteger remainingShards;
+    private final AtomicLong overrunMachineTicks;
+    private int nextShard, parkedCount;
+    private long currentTick;
+
+    private volatile long tickBudgetNanos, machineBudgetNanos, idleBudgetNanos;
+    private volatile boolean workStealing = true;
+    private volatile long tickGeneration;
+    private volatile Thread tickThread;
+    private volatile boolean closed;
+    private volatile OverrunListener overrunListener;
+    private volatile ErrorListener errorListener;
+    private long overrunTicks;
+    private long lastTickNanos;
+
+    /**
+     * Create a new machine scheduler, starting its worker threads. The
+     * threads are daemon threads, and run until close() is called.
+     *
+     * @param threads The number of worker threads to tick machines on.
+     * @param tickDuration The duration of a single tick, in seconds, as
+     *                     passed to Machine.tick(). This is also the default
+     *                     wall-clock budget of a single tick.
+     */
+    public MachineScheduler(int threads, double tickDuration) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+
+        this.tickDuration = tickDuration;
+        // A few shards per thread, so that work stealing can even out
+        // shards containing slower machines.
+        this.shards = new Shard[threads * 4];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        this.slotsByMachine = new IdentityHashMap<>();
+        this.parked = new PriorityQueue<>((a, b) -> Long.compare(a.wakeTick, b.wakeTick));
+        this.added = new ConcurrentLinkedQueue<>();
+        this.removed = new ConcurrentLinkedQueue<>();
+        this.finished = new ConcurrentLinkedQueue<>();
+        this.woken = new ConcurrentLinkedQueue<>();
+        this.errors = new ConcurrentLinkedQueue<>();
+        this.remainingShards = new AtomicInteger();
+        this.overrunMachineTicks = new AtomicLong();
+        this.tickBudgetNanos = (long) (tickDuration * TimeUnit.SECONDS.toNanos(1));
+        this.machineBudgetNanos = tickBudgetNanos;
+
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Worker(i), "MachineScheduler worker " + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Schedule a machine. The machine should already be running.
+     *
+     * @param machine The machine.
+     */
+    public void add(Machine machine) {
+        added.add(machine);
+    }
+
+    /**
+     * Stop scheduling a machine. The machine is not stopped.
+     *
+     * @param machine The machine.
+     */
+    public void remove(Machine machine) {
+        removed.add(machine);
+    }
+
+    /**
+     * Set the wall-clock budget of a whole scheduler tick. Ticks taking
+     * longer than that are counted by getOverrunTicks().
+     *
+     * @param budget The budget.
+     * @param unit The unit of the budget.
+     */
+    public void setTickBudget(long budget, TimeUnit unit) {
+        this.tickBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * Set the wall-clock budget of a single machine's tick. Machine ticks
+     * taking longer than that are counted by getOverrunMachineTicks() and
+     * reported to the overrun listener, if any.
+     *
+     * @param budget The budget.
+     * @param unit The unit of the budget.
+     */
+    public void setMachineBudget(long budget, TimeUnit unit) {
+        this.machineBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * Set the time each shard may spend per tick running idle work of its
+     * parked machines; zero, the default, disables idle work.
+     *
+     * @see Machine#idle(long)
+     * @param budget The budget.
+     * @param unit The unit of the budget.
+     */
+    public void setIdleBudget(long budget, TimeUnit unit) {
+        this.idleBudgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * Set whether workers may tick shards pinned to other workers once they
+     * are done with their own. Disabling work stealing guarantees that
+     * every machine is always ticked by the same thread.
+     *
+     * @param workStealing Whether work stealing is enabled.
+     */
+    public void setWorkStealing(boolean workStealing) {
+        this.workStealing = workStealing;
+    }
+
+    /**
+     * @param listener The listener to notify of machine ticks exceeding the
+     *                 per-machine budget. Called on the ticking thread.
+     */
+    public void setOverrunListener(OverrunListener listener) {
+        this.overrunListener = listener;
+    }
+
+    /**
+     * @param listener The listener to notify of exceptions thrown by machine
+     *                 ticks or idle work. Called on the ticking thread; if
+     *                 unset, such exceptions are rethrown by tick().
+     */
+    public void setErrorListener(ErrorListener listener) {
+        this.errorListener = listener;
+    }
+
+    /**
+     * @return The number of machines currently scheduled, parked or not.
+     */
+    public int getMachineCount() {
+        return slotsByMachine.size();
+    }
+
+    /**
+     * @return The number of machines currently parked.
+     */
+    public int getParkedMachineCount() {
+        return parkedCount;
+    }
+
+    /**
+     * @return The number of scheduler ticks which exceeded the tick budget.
+     */
+    public long getOverrunTicks() {
+        return overrunTicks;
+    }
+
+    /**
+     * @return The number of machine ticks which exceeded the machine budget.
+     */
+    public long getOverrunMachineTicks() {
+        return overrunMachineTicks.get();
+    }
+
+    /**
+     * @return The wall-clock duration of the last scheduler tick, in
+     * nanoseconds.
+     */
+    public long getLastTickNanos() {
+        return lastTickNanos;
+    }
+
+    /**
+     * Tick every awake scheduled machine once, blocking until all of them
+     * are done.
+     *
+     * @return Whether the last tick stayed within the tick budget.
+     * @throws RuntimeException If a machine's tick or idle work threw an
+     * exception and no error listener is set. Checked exceptions are
+     * wrapped, and exceptions of further machines are suppressed by the
+     * first one. The machines are unscheduled, and the tick is otherwise
+     * complete, before the exception is thrown.
+     * @throws IllegalStateException If the scheduler has been closed.
+     */
+    public boolean tick() {
+        if (closed) {
+            throw new IllegalStateException("Scheduler has been closed!");
+        }
+
+        long start = System.nanoTime();
+        currentTick++;
+        applyPending();
+
+        int pending = 0;
+        for (Shard shard : shards) {
+            shard.currentTick = currentTick;
+            shard.scheduled = !shard.slots.isEmpty() || (!shard.idle.isEmpty() && idleBudgetNanos > 0);
+            if (shard.scheduled) {
+                pending++;
+            }
+        }
+
+        if (pending > 0) {
+            // Workers still looking for shards to steal in the previous tick
+            // may pick up shards as soon as they are marked pending, so the
+            // count has to be in place first.
+            tickThread = Thread.currentThread();
+            remainingShards.set(pending);
+            for (Shard shard : shards) {
+                if (shard.scheduled) {
+                    shard.pending.set(true);
+                }
+            }
+            tickGeneration++;
+            for (Thread worker : workers) {
+                LockSupport.unpark(worker);
+            }
+            while (remainingShards.get() > 0) {
+                LockSupport.park(this);
+            }
+        }
+
+        for (Shard shard : shards) {
+            for (Slot slot : shard.parking) {
+                slot.parkedEntry = new ParkedEntry(slot, slot.wakeTick);
+                parked.add(slot.parkedEntry);
+                parkedCount++;
+                if (!slot.idleQueued) {
+                    slot.idleQueued = true;
+                    shard.idle.add(slot);
+                }
+            }
+            shard.parking.clear();
+        }
+
+        Machine machine;
+        while ((machine = finished.poll()) != null) {
+            Slot slot = slotsByMachine.remove(machine);
+            if (slot != null) {
+                machine.setWakeupListener(null);
+                // Set if the machine failed in idle work.
+                if (slot.parkedEntry != null) {
+                    slot.parkedEntry = null;
+                    parkedCount--;
+                }
+            }
+        }
+
+        // Drop the entries of machines woken up early once they dominate
+        // the heap.
+        if (parked.size() > parkedCount * 2 + 64) {
+            parked.removeIf((e) -> e.slot.parkedEntry != e);
+        }
+
+        lastTickNanos = System.nanoTime() - start;
+        boolean withinBudget = lastTickNanos <= tickBudgetNanos;
+        if (!withinBudget) {
+            overrunTicks++;
+        }
+
+        Throwable error = errors.poll();
+        if (error != null) {
+            Throwable next;
+            while ((next = errors.poll()) != null) {
+                error.addSuppressed(next);
+            }
+
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else {
+                throw new RuntimeException(error);
+            }
+        }
+
+        return withinBudget;
+    }
+
+    /**
+     * Stop the worker threads. The scheduled machines are not stopped.
+     */
+    public void close() {
+        closed = true;
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Convert a machine's wakeup delay to a number of ticks, rounded up.
+     */
+    private long getWakeupTicks(double delay) {
+        double ticks = Math.ceil(delay / tickDuration);
+        // Anything beyond a few years of ticks is as good as forever.
+        return ticks >= (double) (1L << 40) ? Long.MAX_VALUE : (long) ticks;
+    }
+
+    private void reportError(Machine machine, Exception e) {
+        ErrorListener listener = errorListener;
+        if (listener != null) {
+            listener.onError(machine, e);
+        } else {
+            errors.add(e);
+        }
+    }
+
+    private void applyPending() {
+        Machine machine;
+        while ((machine = removed.poll()) != null) {
+            unschedule(machine);
+        }
+
+        while ((machine = added.poll()) != null) {
+            if (!slotsByMachine.containsKey(machine)) {
+                Shard shard = shards[nextShard];
+                nextShard = (nextShard + 1) % shards.length;
+                Slot slot = new Slot(machine, shard, currentTick - 1);
+                shard.slots.add(slot);
+                slotsByMachine.put(machine, slot);
+                machine.setWakeupListener(() -> woken.add(slot.machine));
+            }
+        }
+
+        while ((machine = woken.poll()) != null) {
+            Slot slot = slotsByMachine.get(machine);
+            if (slot != null && slot.parkedEntry != null) {
+                unpark(slot);
+            }
+        }
+
+        while (!parked.isEmpty() && parked.peek().wakeTick <= currentTick) {
+            ParkedEntry entry = parked.poll();
+            if (entry.slot.parkedEntry == entry) {
+                unpark(entry.slot);
+            }
+        }
+    }
+
+    private void unpark(Slot slot) {
+        slot.parkedEntry = null;
+        parkedCount--;
+        slot.shard.slots.add(slot);
+    }
+
+    private void unschedule(Machine machine) {
+        Slot slot = slotsByMachine.remove(machine);
+        if (slot != null) {
+            machine.setWakeupListener(null);
+            if (slot.parkedEntry != null) {
+                slot.parkedEntry = null;
+                parkedCount--;
+            } else {
+                slot.shard.slots.remove(slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.component;
+
+import java.lang.reflect.Array;
+
+/**
+ * A sink for the results of a component method, which writes them directly
+ * to the caller - for Lua-based machines, to the Lua stack.
+ *
+ * A ComponentMethod may declare a ReturnSink parameter, supplied by the
+ * caller and not corresponding to any argument, and push any number of
+ * results to it without allocating; such methods should return void.
+ */
+public interface ReturnSink {
+    void pushInteger(long value);
+
+    void pushNumber(double value);
+
+    void pushBoolean(boolean value);
+
+    /**
+     * @param value The string; null is pushed as a nil value.
+     */
+    void pushString(String value);
+
+    void pushObject(Object value);
+
+    /**
+     * Push every element of an array, as returned by component methods
+     * returning multiple arguments. Primitive elements are pushed without
+     * boxing.
+     *
+     * @param sink The sink.
+     * @param array The array; if null, nothing is pushed.
+     */
+    static void pushArray(ReturnSink sink, Object array) {
+        if (array == null) {
+            return;
+        } else if (array instanceof Object[]) {
+            for (Object o : (Object[]) array) {
+                sink.pushObject(o);
+            }
+        } else if (array instanceof int[]) {
+            for (int i : (int[]) array) {
+                sink.pushInteger(i);
+            }
+        } else if (array instanceof long[]) {
+            for (long l : (long[]) array) {
+                sink.pushInteger(l);
+            }
+        } else if (array instanceof double[]) {
+            for (double d : (double[]) array) {
+                sink.pushNumber(d);
+            }
+        } else if (array instanceof boolean[]) {
+            for (boolean b : (boolean[]) array) {
+                sink.pushBoolean(b);
+            }
+        } else {
+            int length = Array.getLength(array);
+            for (int i = 0; i < length; i++) {
+                sink.pushObject(Array.get(array, i));
+            }
+        }
+    }
+}
@@ -72,4 +72,16 @@ public interface KeyboardInputProvider {
      * @return The waiting key, which is then removed.
      */
     Key nextKey();
+
+    /**
+     * Set a listener to be called whenever a new key is waiting, from any
+     * thread. Providers which do not support this are polled every tick
+     * instead.
+     *
+     * @param listener The listener.
+     * @return Whether the listener is supported.
+     */
+    default boolean setKeyListener(Runnable listener) {
+        return false;
+    }
 }
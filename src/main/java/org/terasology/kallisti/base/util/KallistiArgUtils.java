@@ -16,8 +16,9 @@
 
 package org.terasology.kallisti.base.util;
 
+import org.terasology.kallisti.base.component.ReturnSink;
+
 import java.lang.reflect.Method;
-import java.util.Collection;
 import java.util.Optional;
 import java.util.stream.Stream;
 
@@ -42,16 +43,47 @@ public final class KallistiArgUtils {
 		}
 	}
 
+	/**
+	 * Get the types of the parameters of a method which correspond to
+	 * arguments; that is, all but ReturnSink parameters.
+	 *
+	 * @param m The method.
+	 * @return The argument types.
+	 */
+	public static Class[] getArgumentTypes(Method m) {
+		Class[] types = m.getParameterTypes();
+		int count = 0;
+		for (Class type : types) {
+			if (type != ReturnSink.class) {
+				count++;
+			}
+		}
+
+		if (count == types.length) {
+			return types;
+		}
+
+		Class[] argTypes = new Class[count];
+		int i = 0;
+		for (Class type : types) {
+			if (type != ReturnSink.class) {
+				argTypes[i++] = type;
+			}
+		}
+		return argTypes;
+	}
+
 	public static Optional<Method> findClosestMethod(int argCount, Stream<Method> methods, boolean allowOptionals) {
 		return methods.filter((m) -> {
+			Class[] types = getArgumentTypes(m);
 			if (m.isVarArgs()) {
-				return argCount >= m.getParameterCount() - 1;
+				return argCount >= types.length - 1;
 			} else {
 				if (allowOptionals) {
-					int maxArgCount = m.getParameterCount();
+					int maxArgCount = types.length;
 					int minArgCount = maxArgCount;
 					while (minArgCount > 0) {
-						if (m.getParameterTypes()[minArgCount - 1] == Optional.class) {
+						if (types[minArgCount - 1] == Optional.class) {
 							minArgCount--;
 						} else {
 							break;
@@ -59,7 +91,7 @@ public final class KallistiArgUtils {
 					}
 					return argCount >= minArgCount && argCount <= maxArgCount;
 				} else {
-					return argCount == m.getParameterCount();
+					return argCount == types.length;
 				}
 			}
 		}).findFirst();
@@ -17,49 +17,70 @@
 package org.terasology.kallisti.base.util;
 
 import java.util.Arrays;
-import java.util.Iterator;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.Set;
 
 /**
- * Utility methods for
+ * Utility methods for reflection-related operations.
  */
 public final class KallistiReflect {
+    private static final ClassValue<Class[]> HIERARCHY = new ClassValue<Class[]>() {
+        @Override
+        protected Class[] computeValue(Class<?> type) {
+            Set<Class> classes = new LinkedHashSet<>();
+            LinkedList<Class> clist = new LinkedList<>();
+            clist.add(type);
+
+            while (!clist.isEmpty()) {
+                Class c = clist.remove();
+                if (!classes.add(c)) {
+                    continue;
+                }
+
+                if (c != Object.class && c.getSuperclass() != null) {
+                    clist.add(c.getSuperclass());
+                }
+                for (Class ci : c.getInterfaces()) {
+                    if (ci != null) {
+                        clist.add(ci);
+                    }
+                }
+            }
+
+            return classes.toArray(new Class[0]);
+        }
+    };
+
     private KallistiReflect() {
 
     }
 
+    /**
+     * Get all classes extended or implemented by the given class,
+     * recursively, including the class itself. Each class is only present
+     * once, and closer classes come first.
+     *
+     * The array is cached and shared; it must not be modified.
+     *
+     * @param cc The class.
+     * @return The array of classes.
+     */
+    public static Class[] hierarchy(Class cc) {
+        return HIERARCHY.get(cc);
+    }
+
     /**
      * Get an iterable view of all classes extended or implemented by the
-     * given class, recursively.
+     * given class, recursively. The view is read-only, as it is backed by
+     * the shared cached array.
      * @param cc The class.
+     * @see #hierarchy(Class)
      */
     public static Iterable<Class> classes(Class cc) {
-        return () -> {
-            final LinkedList<Class> clist = new LinkedList<>();
-            clist.add(cc);
-
-            return new Iterator<Class>() {
-                @Override
-                public boolean hasNext() {
-                    return !clist.isEmpty();
-                }
-
-                @Override
-                public Class next() {
-                    Class c = clist.remove();
-                    if (c != Object.class && c.getSuperclass() != null) {
-                        clist.add(c.getSuperclass());
-                    }
-                    for (Class ci : c.getInterfaces()) {
-                        if (ci != null) {
-                            clist.add(ci);
-                        }
-                    }
-                    return c;
-                }
-            };
-        };
+        return Collections.unmodifiableList(Arrays.asList(hierarchy(cc)));
     }
 
     /**
@@ -74,9 +95,13 @@ public final class KallistiReflect {
      * @return The desired entry, or null if not present.
      */
     public static <V> V findClosestMatchingClass(Map<Class, V> map, Class cc) {
+        if (map.isEmpty()) {
+            return null;
+        }
+
         V v;
 
-        for (Class c : classes(cc)) {
+        for (Class c : hierarchy(cc)) {
             if ((v = map.get(c)) != null) {
                 return v;
             }
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.base.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue backed by a ring buffer, based on Dmitry
+ * Vyukov's bounded MPMC queue. Any number of threads may offer and poll
+ * elements concurrently; neither operation ever blocks.
+ *
+ * When the queue is full, the configured OverflowPolicy decides whether
+ * new elements are rejected or the oldest queued elements are dropped
+ * to make room for them. Either way, the lost elements are counted.
+ *
+ * @param <T> The element type.
+ */
+public final class RingBufferQueue<T> {
+    /**
+     * The behaviour of a full queue when offered a new element.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Reject the new element.
+         */
+        REJECT,
+        /**
+         * Drop the oldest queued element(s) to make room for the new one.
+         */
+        DROP_OLDEST
+    }
+
+    private final Object[] items;
+    // Each cell's sequence number tells producers and consumers whether
+    // it is free for a given position; writes to it publish the cell's item.
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePos, dequeuePos, dropped;
+    private volatile OverflowPolicy policy;
+
+    /**
+     * Create a new ring buffer queue.
+     *
+     * @param capacity The capacity; rounded up to the nearest power of two.
+     * @param policy The overflow policy.
+     */
+    public RingBufferQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive!");
+        }
+
+        int size = KallistiMath.smallestContainingPowerTwo(capacity);
+        this.items = new Object[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+        this.enqueuePos = new AtomicLong();
+        this.dequeuePos = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.policy = policy;
+    }
+
+    /**
+     * Offer an element to the queue.
+     *
+     * @param value The element; must not be null.
+     * @return Whether the element has been queued.
+     */
+    public boolean offer(T value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+
+        while (!tryOffer(value)) {
+            if (policy != OverflowPolicy.DROP_OLDEST) {
+                dropped.incrementAndGet();
+                return false;
+            } else if (poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        return true;
+    }
+
+    private boolean tryOffer(T value) {
+        long pos = enqueuePos.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    items[index] = value;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element from the queue.
+     *
+     * @return The element, or null if the queue is empty.
+     */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        long pos = dequeuePos.get();
+        while (true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    T value = (T) items[index];
+                    items[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    return value;
+                }
+                pos = dequeuePos.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Remove all elements from the queue. Dropped elements are not counted.
+     */
+    public void clear() {
+        while (poll() != null) {
+            // drain
+        }
+    }
+
+    /**
+     * @return Whether the queue is empty. Only a hint while other threads
+     * are modifying it.
+     */
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The number of queued elements. Only a hint while other threads
+     * are modifying it.
+     */
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, items.length));
+    }
+
+    /**
+     * @return The maximum number of queued elements.
+     */
+    public int capacity() {
+        return items.length;
+    }
+
+    /**
+     * @return The number of elements rejected or dropped due to the queue
+     * being full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public void setOverflowPolicy(OverflowPolicy policy) {
+        this.policy = policy;
+    }
+}
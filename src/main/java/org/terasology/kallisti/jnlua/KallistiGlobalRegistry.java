@@ -16,28 +16,75 @@
 
 package org.terasology.kallisti.jnlua;
 
-import org.terasology.jnlua.LuaState53;
 import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
 import org.terasology.jnlua.LuaRuntimeException;
 import org.terasology.jnlua.LuaState;
 import org.terasology.jnlua.NamedJavaFunction;
 import org.terasology.kallisti.base.util.KallistiArgUtils;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
 import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
 import java.util.*;
 
 public final class KallistiGlobalRegistry {
+	// Invokers of each class's methods, by name and argument count; the
+	// last invoker of each method covers all larger argument counts.
+	private static final ClassValue<Map<String, MethodHandle[]>> INVOKERS = new ClassValue<Map<String, MethodHandle[]>>() {
+		@Override
+		protected Map<String, MethodHandle[]> computeValue(Class<?> type) {
+			Map<String, List<Method>> methodsByName = new HashMap<>();
+			for (Method m : type.getMethods()) {
+				if (m.getAnnotation(ComponentMethod.class) == null) {
+					continue;
+				}
+
+				String methodName = m.getAnnotation(ComponentMethod.class).name();
+				if (methodName.isEmpty()) {
+					methodName = m.getName();
+				}
+
+				methodsByName.computeIfAbsent(methodName, (s) -> new ArrayList<>()).add(m);
+			}
+
+			Map<String, MethodHandle[]> invokers = new HashMap<>();
+			for (Map.Entry<String, List<Method>> entry : methodsByName.entrySet()) {
+				int maxCount = 0;
+				for (Method m : entry.getValue()) {
+					maxCount = Math.max(maxCount, KallistiArgUtils.getArgumentTypes(m).length);
+				}
+
+				MethodHandle[] byCount = new MethodHandle[maxCount + 2];
+				for (int i = 0; i < byCount.length; i++) {
+					Optional<Method> om = KallistiArgUtils.findClosestMethod(i, entry.getValue().stream(), true);
+					if (om.isPresent()) {
+						try {
+							byCount[i] = KallistiInvokers.create(om.get(), i);
+						} catch (IllegalAccessException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+				invokers.put(entry.getKey(), byCount);
+			}
+			return invokers;
+		}
+	};
+
 	private static class Func implements NamedJavaFunction {
 		private final String methodName;
-		private final Object obj;
-		private final List<Method> methods = new ArrayList<>();
+		private final MethodHandle[] invokers;
+		private final LuaReturnSink sink;
 
-		public Func(String methodName, Object obj) {
+		public Func(String methodName, Object obj, MethodHandle[] invokers, LuaState state) {
 			this.methodName = methodName;
-			this.obj = obj;
+			this.sink = new LuaReturnSink(state);
+			this.invokers = new MethodHandle[invokers.length];
+			for (int i = 0; i < invokers.length; i++) {
+				if (invokers[i] != null) {
+					this.invokers[i] = invokers[i].bindTo(obj);
+				}
+			}
 		}
 
 		@Override
@@ -47,72 +94,21 @@ public final class KallistiGlobalRegistry {
 
 		@Override
 		public int invoke(LuaState luaState) {
-			int argCount = luaState.getTop();
-			Optional<Method> om = KallistiArgUtils.findClosestMethod(argCount, methods.stream(), true);
-
-			if (!om.isPresent()) {
+			MethodHandle invoker = invokers[Math.min(luaState.getTop(), invokers.length - 1)];
+			if (invoker == null) {
 				throw new RuntimeException("Could not find method " + methodName + "!");
 			}
 
-			Method m = om.get();
-			int parameterCount = m.getParameterCount();
-			Object[] arguments = new Object[parameterCount];
-
-			if (m.isVarArgs()) {
-				for (int i = 0; i < parameterCount - 1; i++) {
-					arguments[i] = luaState.toJavaObject(i + 1, m.getParameterTypes()[i]);
-				}
-				Class componentType = m.getParameterTypes()[parameterCount - 1].getComponentType();
-				arguments[parameterCount - 1] = Array.newInstance(componentType, argCount - (parameterCount - 1));
-				for (int i = parameterCount - 1; i < argCount; i++) {
-					Object entry = luaState.toJavaObject(i + 1, componentType);
-					Array.set(arguments[parameterCount - 1], i - (parameterCount - 1), entry);
-				}
-			} else {
-				for (int i = 0; i < parameterCount; i++) {
-					Class c = m.getParameterTypes()[i];
-					Class wrappedC = c;
-					if (c == Optional.class) {
-						wrappedC = (Class) (((ParameterizedType) m.getGenericParameterTypes()[i]).getActualTypeArguments()[0]);
-					}
-					if (i >= argCount) {
-						arguments[i] = KallistiArgUtils.getNullObjectFor(c);
-					} else {
-						arguments[i] = KallistiArgUtils.getObjectFor(c, luaState.toJavaObject(i + 1, wrappedC));
-					}
-				}
-			}
-
+			int top = luaState.getTop();
 			try {
-				Object o = m.invoke(obj, arguments);
-
-				boolean isMultiArg = false;
-				ComponentMethod cm;
-				if ((cm = m.getAnnotation(ComponentMethod.class)) != null) {
-					isMultiArg = cm.returnsMultipleArguments();
-				}
-
-				if (m.getReturnType() == Void.TYPE) {
-					return 0;
-				} else if (isMultiArg && m.getReturnType().isArray()) {
-					if (o == null) {
-						return 0;
-					}
-
-					int alen = Array.getLength(o);
-					for (int i = 0; i < alen; i++) {
-						luaState.pushJavaObject(Array.get(o, i));
-					}
-					return alen;
-				} else {
-					luaState.pushJavaObject(o);
-					return 1;
-				}
-			} catch (InvocationTargetException e) {
-				throw new RuntimeException(e.getTargetException());
-			} catch (IllegalAccessException e) {
-				throw new RuntimeException(e);
+				invoker.invokeExact(luaState, sink.getState() == luaState ? (ReturnSink) sink : new LuaReturnSink(luaState));
+			} catch (LuaRuntimeException e) {
+				// Argument conversion errors.
+				throw e;
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
 			}
+			return luaState.getTop() - top;
 		}
 	}
 
@@ -121,24 +117,14 @@ public final class KallistiGlobalRegistry {
 	}
 
 	public static void registerGlobal(Object obj, String name, LuaState state) {
-		Class c = obj.getClass();
-
-		Map<String, Func> funcMap = new HashMap<>();
-
-		for (Method m : c.getMethods()) {
-			if (m.getAnnotation(ComponentMethod.class) == null) {
-				continue;
-			}
-
-			String methodName = m.getAnnotation(ComponentMethod.class).name();
-			if (methodName.isEmpty()) {
-				methodName = m.getName();
-			}
-
-			funcMap.computeIfAbsent(methodName, (s) -> new Func(s, obj)).methods.add(m);
+		Map<String, MethodHandle[]> invokers = INVOKERS.get(obj.getClass());
+		NamedJavaFunction[] funcs = new NamedJavaFunction[invokers.size()];
+		int i = 0;
+		for (Map.Entry<String, MethodHandle[]> entry : invokers.entrySet()) {
+			funcs[i++] = new Func(entry.getKey(), obj, entry.getValue(), state);
 		}
 
-		state.register(name, funcMap.values().toArray(new NamedJavaFunction[0]), true);
+		state.register(name, funcs, true);
 		state.newTable();
 		state.pushJavaFunction(luaState -> {
 			String key = luaState.toJavaObject(-1, String.class);
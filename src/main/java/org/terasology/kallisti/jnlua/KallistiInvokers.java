@@ -0,0 +1,247 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.jnlua;
+
+import org.terasology.jnlua.LuaRuntimeException;
+import org.terasology.jnlua.LuaState;
+import org.terasology.jnlua.LuaType;
+import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.Optional;
+
+/**
+ * Builds specialized invokers for methods exposed to Lua.
+ *
+ * An invoker is a MethodHandle of type (Object, LuaState, ReturnSink)void,
+ * which reads a fixed number of arguments straight off the Lua stack, calls
+ * the method on the given object and pushes its results to the sink.
+ * Arguments and results of common types (int, double, boolean, String)
+ * are read and pushed without boxing.
+ */
+public final class KallistiInvokers {
+	private static final Object[] NO_VALUES = new Object[0];
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final MethodHandle TO_JAVA_OBJECT, READ_INT, READ_DOUBLE, READ_BOOLEAN, READ_STRING;
+	private static final MethodHandle READ_OPTIONAL, READ_OBJECT_VARARGS, READ_VARARGS;
+	private static final MethodHandle PUSH_INTEGER, PUSH_NUMBER, PUSH_BOOLEAN, PUSH_STRING, PUSH_OBJECT, PUSH_ARRAY;
+
+	static {
+		try {
+			TO_JAVA_OBJECT = LOOKUP.findVirtual(LuaState.class, "toJavaObject", MethodType.methodType(Object.class, int.class, Class.class));
+			READ_INT = findStatic("readInt", int.class, LuaState.class, int.class);
+			READ_DOUBLE = findStatic("readDouble", double.class, LuaState.class, int.class);
+			READ_BOOLEAN = findStatic("readBoolean", boolean.class, LuaState.class, int.class);
+			READ_STRING = findStatic("readString", String.class, LuaState.class, int.class);
+			READ_OPTIONAL = findStatic("readOptional", Optional.class, LuaState.class, int.class, Class.class);
+			READ_OBJECT_VARARGS = findStatic("readObjectVarargs", Object[].class, LuaState.class, int.class);
+			READ_VARARGS = findStatic("readVarargs", Object.class, LuaState.class, int.class, Class.class);
+			PUSH_INTEGER = findPush("pushInteger", long.class);
+			PUSH_NUMBER = findPush("pushNumber", double.class);
+			PUSH_BOOLEAN = findPush("pushBoolean", boolean.class);
+			PUSH_STRING = findPush("pushString", String.class);
+			PUSH_OBJECT = findPush("pushObject", Object.class);
+			PUSH_ARRAY = MethodHandles.permuteArguments(
+					LOOKUP.findStatic(ReturnSink.class, "pushArray", MethodType.methodType(void.class, ReturnSink.class, Object.class)),
+					MethodType.methodType(void.class, Object.class, ReturnSink.class), 1, 0);
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private KallistiInvokers() {
+
+	}
+
+	private static MethodHandle findStatic(String name, Class ret, Class... args) throws ReflectiveOperationException {
+		return LOOKUP.findStatic(KallistiInvokers.class, name, MethodType.methodType(ret, args));
+	}
+
+	// (T, ReturnSink)void
+	private static MethodHandle findPush(String name, Class type) throws ReflectiveOperationException {
+		MethodHandle handle = LOOKUP.findVirtual(ReturnSink.class, name, MethodType.methodType(void.class, type));
+		return MethodHandles.permuteArguments(handle, MethodType.methodType(void.class, type, ReturnSink.class), 1, 0);
+	}
+
+	/**
+	 * Create an invoker for a given method, called with a given number of
+	 * Lua arguments.
+	 *
+	 * @param m The method.
+	 * @param argCount The number of arguments passed from Lua; parameters
+	 *                 past it are expected to be Optional.
+	 * @return The invoker, of type (Object, LuaState, ReturnSink)void.
+	 * @throws IllegalAccessException If the method is not accessible.
+	 */
+	static MethodHandle create(Method m, int argCount) throws IllegalAccessException {
+		Class[] types = m.getParameterTypes();
+		MethodHandle target = LOOKUP.unreflect(m).asFixedArity();
+		if (Modifier.isStatic(m.getModifiers())) {
+			target = MethodHandles.dropArguments(target, 0, Object.class);
+		} else {
+			target = target.asType(target.type().changeParameterType(0, Object.class));
+		}
+
+		// Replace every argument parameter with a reader of type
+		// (LuaState)T, then merge all of the LuaState and ReturnSink
+		// parameters into one each.
+		int[] reorder = new int[types.length + 1];
+		int luaIndex = 1;
+		for (int i = 0; i < types.length; i++) {
+			if (types[i] == ReturnSink.class) {
+				reorder[i + 1] = 2;
+				continue;
+			}
+
+			MethodHandle reader;
+			if (m.isVarArgs() && i == types.length - 1) {
+				reader = createVarargsReader(types[i].getComponentType(), luaIndex);
+			} else if (types[i] == Optional.class) {
+				Class wrapped = (Class) (((ParameterizedType) m.getGenericParameterTypes()[i]).getActualTypeArguments()[0]);
+				reader = luaIndex <= argCount
+						? MethodHandles.insertArguments(READ_OPTIONAL, 1, luaIndex, wrapped)
+						: MethodHandles.dropArguments(MethodHandles.constant(Optional.class, Optional.empty()), 0, LuaState.class);
+			} else {
+				reader = MethodHandles.insertArguments(createReader(types[i]), 1, luaIndex);
+			}
+			target = MethodHandles.filterArguments(target, i + 1, reader.asType(reader.type().changeReturnType(types[i])));
+			reorder[i + 1] = 1;
+			luaIndex++;
+		}
+
+		Class returnType = target.type().returnType();
+		target = MethodHandles.permuteArguments(target, MethodType.methodType(returnType, Object.class, LuaState.class, ReturnSink.class), reorder);
+
+		if (returnType == void.class) {
+			return target;
+		}
+
+		ComponentMethod cm = m.getAnnotation(ComponentMethod.class);
+		MethodHandle pusher = createResultPusher(returnType, cm != null && cm.returnsMultipleArguments());
+		pusher = MethodHandles.dropArguments(pusher, 1, Object.class, LuaState.class);
+		return MethodHandles.foldArguments(pusher, target);
+	}
+
+	/**
+	 * Create a handle pushing the result of a method to a ReturnSink.
+	 *
+	 * @param type The return type of the method; not void.
+	 * @param multipleResults Whether array results are pushed as multiple
+	 *                        values.
+	 * @return The handle, of type (type, ReturnSink)void.
+	 */
+	public static MethodHandle createResultPusher(Class type, boolean multipleResults) {
+		MethodHandle pusher;
+		if (multipleResults && type.isArray()) {
+			pusher = PUSH_ARRAY;
+		} else if (type == int.class || type == long.class || type == short.class || type == byte.class) {
+			pusher = PUSH_INTEGER;
+		} else if (type == double.class || type == float.class) {
+			pusher = PUSH_NUMBER;
+		} else if (type == boolean.class) {
+			pusher = PUSH_BOOLEAN;
+		} else if (type == String.class) {
+			pusher = PUSH_STRING;
+		} else {
+			pusher = PUSH_OBJECT;
+		}
+		return pusher.asType(pusher.type().changeParameterType(0, type));
+	}
+
+	private static MethodHandle createReader(Class type) {
+		if (type == int.class) {
+			return READ_INT;
+		} else if (type == double.class) {
+			return READ_DOUBLE;
+		} else if (type == boolean.class) {
+			return READ_BOOLEAN;
+		} else if (type == String.class) {
+			return READ_STRING;
+		} else {
+			return MethodHandles.insertArguments(TO_JAVA_OBJECT, 2, type);
+		}
+	}
+
+	private static MethodHandle createVarargsReader(Class componentType, int first) {
+		if (componentType == Object.class) {
+			return MethodHandles.insertArguments(READ_OBJECT_VARARGS, 1, first);
+		} else {
+			return MethodHandles.insertArguments(READ_VARARGS, 1, first, componentType);
+		}
+	}
+
+	// Values of other Lua types go through the converter, which reports
+	// the conversion error.
+
+	private static int readInt(LuaState state, int index) {
+		if (state.type(index) != LuaType.NUMBER) {
+			return state.toJavaObject(index, int.class);
+		}
+
+		// toInteger yields 0 for numbers without an integer value, which
+		// the comparison with toNumber catches.
+		long value = state.toInteger(index);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE || value != state.toNumber(index)) {
+			throw new LuaRuntimeException("bad argument #" + index + " (number has no int representation)");
+		}
+		return (int) value;
+	}
+
+	private static double readDouble(LuaState state, int index) {
+		return state.type(index) == LuaType.NUMBER ? state.toNumber(index) : state.toJavaObject(index, double.class);
+	}
+
+	private static boolean readBoolean(LuaState state, int index) {
+		return state.type(index) == LuaType.BOOLEAN ? state.toBoolean(index) : state.toJavaObject(index, boolean.class);
+	}
+
+	private static String readString(LuaState state, int index) {
+		return state.type(index) == LuaType.STRING ? state.toString(index) : state.toJavaObject(index, String.class);
+	}
+
+	private static Optional readOptional(LuaState state, int index, Class type) {
+		return Optional.ofNullable(state.toJavaObject(index, type));
+	}
+
+	private static Object[] readObjectVarargs(LuaState state, int first) {
+		int count = state.getTop() - first + 1;
+		if (count <= 0) {
+			return NO_VALUES;
+		}
+
+		Object[] values = new Object[count];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = state.toJavaObject(first + i, Object.class);
+		}
+		return values;
+	}
+
+	private static Object readVarargs(LuaState state, int first, Class componentType) {
+		Object values = Array.newInstance(componentType, Math.max(0, state.getTop() - first + 1));
+		for (int i = 0; i < Array.getLength(values); i++) {
+			Array.set(values, i, state.toJavaObject(first + i, componentType));
+		}
+		return values;
+	}
+}
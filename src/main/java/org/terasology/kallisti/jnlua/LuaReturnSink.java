@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.jnlua;
+
+import org.terasology.jnlua.LuaState;
+import org.terasology.kallisti.base.component.ReturnSink;
+
+/**
+ * A ReturnSink pushing results onto a Lua stack.
+ */
+final class LuaReturnSink implements ReturnSink {
+	private final LuaState state;
+
+	LuaReturnSink(LuaState state) {
+		this.state = state;
+	}
+
+	LuaState getState() {
+		return state;
+	}
+
+	@Override
+	public void pushInteger(long value) {
+		state.pushInteger(value);
+	}
+
+	@Override
+	public void pushNumber(double value) {
+		state.pushNumber(value);
+	}
+
+	@Override
+	public void pushBoolean(boolean value) {
+		state.pushBoolean(value);
+	}
+
+	@Override
+	public void pushString(String value) {
+		if (value == null) {
+			state.pushNil();
+		} else {
+			state.pushString(value);
+		}
+	}
+
+	@Override
+	public void pushObject(Object value) {
+		state.pushJavaObject(value);
+	}
+}
@@ -16,12 +16,17 @@
 
 package org.terasology.kallisti.oc;
 
+import org.terasology.jnlua.JavaFunction;
+import org.terasology.jnlua.LuaRuntimeException;
 import org.terasology.jnlua.LuaState53;
+import org.terasology.jnlua.LuaType;
 import org.terasology.jnlua.LuaValueProxy;
 import org.terasology.kallisti.base.component.ComponentContext;
+import org.terasology.kallisti.base.component.ComponentTickEvent;
 import org.terasology.kallisti.base.component.Machine;
 import org.terasology.kallisti.base.component.Peripheral;
 import org.terasology.kallisti.base.interfaces.Persistable;
+import org.terasology.kallisti.base.util.RingBufferQueue;
 import org.terasology.kallisti.jnlua.KallistiConverter;
 import org.terasology.kallisti.jnlua.KallistiGlobalRegistry;
 import org.terasology.jnlua.LuaState;
@@ -29,122 +34,472 @@ import org.terasology.kallisti.oc.proxy.OCUserdataProxy;
 import org.terasology.kallisti.oc.proxy.OCUserdataProxyList;
 import org.terasology.kallisti.oc.proxy.OCUserdataProxyMap;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class MachineOpenComputers extends Machine {
+    /**
+     * The garbage collection mode of a machine's Lua state.
+     */
+    public enum GcMode {
+        INCREMENTAL,
+        /**
+         * Generational collection, where supported by the Lua runtime;
+         * incremental collection otherwise.
+         */
+        GENERATIONAL
+    }
+
+    // The number of VM instructions between two watchdog checks. Each check
+    // is a call into Java; see LuaWatchdogBenchmark for its overhead on a
+    // CPU-bound resume.
+    static final int WATCHDOG_INSTRUCTIONS = 10000;
+
+    // The factor by which memory sizes are scaled on 64-bit JVMs, unless
+    // marked as exact. This is a flat allowance for the larger size of Lua
+    // values, not a measurement; see the memoryScale constructor parameter.
+    static final float RAM_SCALE_FOR_64_BIT = 1.75f;
+
+    // The number of machine.lua sources whose bytecode is kept.
+    private static final int BYTECODE_CACHE_SIZE = 16;
+
+    // Dumped machine.lua bytecode, keyed by Lua state class and source
+    // digest; see getMachineCodeKey().
+    private static final Map<String, byte[]> BYTECODE_CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                    return size() > BYTECODE_CACHE_SIZE;
+                }
+            });
+
+    // Takes a registry key, and stores a function restoring the Lua state
+    // to its current state under it. Everything reachable from the registry
+    // and _G is snapshot: the fields and metatables of tables, the upvalues
+    // of functions, the metatables and user values of userdata, and the
+    // metatables shared by all strings, numbers, booleans, functions,
+    // threads and nil. The integer keys of the registry are left alone, as
+    // they hold references owned by Java code. Objects created afterwards
+    // are not reset, but are no longer reachable once the objects they were
+    // stored in are restored. Threads and the Java-side state of userdata
+    // are not reset.
+    private static final String RESTORE_STATE_FACTORY =
+            "local key = ... "
+            + "local next, type, rawset = next, type, rawset "
+            + "local getmetatable, setmetatable = debug.getmetatable, debug.setmetatable "
+            + "local getupvalue, setupvalue = debug.getupvalue, debug.setupvalue "
+            + "local getuservalue, setuservalue = debug.getuservalue, debug.setuservalue "
+            + "local registry = debug.getregistry() "
+            + "local seen, queue, count = {}, {}, 0 "
+            + "local function visit(v) "
+            + "local t = type(v) "
+            + "if (t == 'table' or t == 'function' or t == 'userdata') and not seen[v] then "
+            + "seen[v] = true count = count + 1 queue[count] = v "
+            + "end "
+            + "end "
+            + "local samples = {'', 0, false, print, (coroutine.running())} "
+            + "local metas = {} "
+            + "for i = 1, #samples do metas[i] = getmetatable(samples[i]) visit(metas[i]) end "
+            + "local nilMeta = getmetatable(nil) visit(nilMeta) "
+            + "visit(registry) visit(_G) "
+            + "local tables, functions, userdata = {}, {}, {} "
+            + "local i = 1 "
+            + "while i <= count do "
+            + "local v = queue[i] queue[i] = nil i = i + 1 "
+            + "local t = type(v) "
+            + "if t == 'table' then "
+            + "local fields = {} "
+            + "for k, x in next, v do fields[k] = x visit(k) visit(x) end "
+            + "local meta = getmetatable(v) visit(meta) "
+            + "tables[v] = {fields = fields, meta = meta} "
+            + "elseif t == 'function' then "
+            + "local ups, n = {}, 0 "
+            + "while true do "
+            + "local name, x = getupvalue(v, n + 1) "
+            + "if name == nil then break end "
+            + "n = n + 1 ups[n] = x visit(x) "
+            + "end "
+            + "if n > 0 then functions[v] = {ups = ups, n = n} end "
+            + "else "
+            + "local meta, value = getmetatable(v), getuservalue(v) visit(meta) visit(value) "
+            + "userdata[v] = {meta = meta, value = value} "
+            + "end "
+            + "end "
+            + "local function restore() "
+            + "for t, s in next, tables do "
+            + "local keepRefs = t == registry "
+            + "for k in next, t do "
+            + "if s.fields[k] == nil and not (keepRefs and type(k) == 'number') then rawset(t, k, nil) end "
+            + "end "
+            + "for k, v in next, s.fields do "
+            + "if not (keepRefs and type(k) == 'number') then rawset(t, k, v) end "
+            + "end "
+            + "setmetatable(t, s.meta) "
+            + "end "
+            + "for f, s in next, functions do "
+            + "for j = 1, s.n do setupvalue(f, j, s.ups[j]) end "
+            + "end "
+            + "for u, s in next, userdata do "
+            + "setmetatable(u, s.meta) "
+            // Only full userdata have user values.
+            + "if s.value ~= nil then setuservalue(u, s.value) end "
+            + "end "
+            + "for i = 1, #samples do setmetatable(samples[i], metas[i]) end "
+            + "setmetatable(nil, nilMeta) "
+            + "end "
+            + "registry[key] = restore "
+            + "tables[registry].fields[key] = restore";
+
     // TODO: This shouldn't be here, but ShimUnicode...
     protected final OCFont font;
 
     private final Map<String, Object> peripheralAddressMap = new HashMap<>();
-    private final LinkedList<Object[]> signalQueue = new LinkedList<>();
+    // Matches the signal queue limit of OpenComputers.
+    private final RingBufferQueue<Object[]> signalQueue = new RingBufferQueue<>(256, RingBufferQueue.OverflowPolicy.REJECT);
+    private final OCMachineMetrics metrics = new OCMachineMetrics(signalQueue::getDroppedCount);
+    // Components whose tick listeners only have work after they woke the
+    // machine up themselves; they do not keep it from being parked.
+    private final Set<Object> selfWakingComponents = Collections.newSetFromMap(new IdentityHashMap<>());
+    // Component changes made while a resume was running on the executor;
+    // applied by the next tick, before resuming again.
+    private final Queue<Runnable> pendingComponentChanges = new ArrayDeque<>();
 
     private final String machineJson;
+    private String machineCodeKey;
     private final LuaState state;
     private final ShimUserdata shimUserdata;
 
     private PeripheralOCComputer peripheralComputer;
     private final OCPersistenceAPI persistenceAPI;
     private final int memorySize;
-    private final float memorySizeMultiplier;
+    private final float memoryScale;
+    // The native memory limit of the Lua state; once initialized, this also
+    // covers the memory used by the machine's own libraries.
+    private int memoryLimit;
+    private int baseMemory;
+    private long reservedMemory;
     private double timeout = 0.5;
+    private long tickCpuBudgetNanos = 5_000_000L;
+    private long resumeDeadline = Long.MAX_VALUE;
+    private int idleGcStepSize = 16;
+    private double callBudget = 1.0, callBudgetLeft = 1.0;
+
+    private final JavaFunction watchdog = (s) -> {
+        if (System.nanoTime() > resumeDeadline) {
+            throw new LuaRuntimeException("too long without yielding");
+        }
+        return 0;
+    };
 
     public MachineOpenComputers(String machineJson, ComponentContext selfContext, OCFont font, int memorySize, boolean isMemorySizeExact, Class<? extends LuaState> luaClass, boolean enablePersistence) {
         this(machineJson, selfContext, font, memorySize, isMemorySizeExact, luaClass, enablePersistence ? "__persist_" + UUID.randomUUID().toString() : null);
     }
 
     public MachineOpenComputers(String machineJson, ComponentContext selfContext, OCFont font, int memorySize, boolean isMemorySizeExact, Class<? extends LuaState> luaClass, String persistenceKey) {
-        this.machineJson = machineJson;
-        if (!isMemorySizeExact && System.getProperty("os.arch").endsWith("64")) {
-            this.memorySizeMultiplier = 1.75f;
-        } else {
-            this.memorySizeMultiplier = 1.0f;
+        this(machineJson, selfContext, font, memorySize, (!isMemorySizeExact && is64Bit()) ? RAM_SCALE_FOR_64_BIT : 1.0f, luaClass, persistenceKey);
+    }
+
+    /**
+     * @param memorySize The memory size of the machine, as seen by Lua code,
+     *                   in bytes; 0 for no limit.
+     * @param memoryScale The factor between the memory size and the native
+     *                    memory the Lua state may allocate for Lua code. It
+     *                    is fixed for the lifetime of the machine; memory is
+     *                    reported to Lua code divided by it.
+     */
+    public MachineOpenComputers(String machineJson, ComponentContext selfContext, OCFont font, int memorySize, float memoryScale, Class<? extends LuaState> luaClass, String persistenceKey) {
+        if (!(memoryScale > 0)) {
+            throw new IllegalArgumentException("Invalid memory scale: " + memoryScale);
         }
-        this.memorySize = Math.round(memorySize * memorySizeMultiplier);
+        this.machineJson = machineJson;
+        this.memoryScale = memoryScale;
+        this.memorySize = memorySize;
+        this.memoryLimit = Math.round(memorySize * memoryScale);
         this.font = font;
+        if (memoryLimit > 0) {
+            reserveMemory(memoryLimit);
+        }
         try {
-            if (this.memorySize > 0) {
-                this.state = luaClass.getConstructor(int.class).newInstance(this.memorySize);
+            if (memoryLimit > 0) {
+                this.state = luaClass.getConstructor(int.class).newInstance(memoryLimit);
             } else {
                 this.state = luaClass.newInstance();
             }
         } catch (Exception e) {
+            releaseMemory();
             throw new RuntimeException(e);
+        } catch (Error e) {
+            releaseMemory();
+            throw e;
         }
 
-        KallistiConverter converter = new KallistiConverter(state.getConverter());
+        // Release the Lua state and the reservation if setting up the
+        // machine fails; nobody else can.
+        try {
+            KallistiConverter converter = new KallistiConverter(state.getConverter());
 
-        state.openLib(LuaState.Library.BASE);
-        state.openLib(LuaState.Library.MATH);
-        state.openLib(LuaState.Library.STRING);
-        state.openLib(LuaState.Library.COROUTINE);
-        state.openLib(LuaState.Library.TABLE);
-        state.openLib(LuaState.Library.DEBUG);
-        state.pop(6);
+            state.openLib(LuaState.Library.BASE);
+            state.openLib(LuaState.Library.MATH);
+            state.openLib(LuaState.Library.STRING);
+            state.openLib(LuaState.Library.COROUTINE);
+            state.openLib(LuaState.Library.TABLE);
+            state.openLib(LuaState.Library.DEBUG);
+            state.pop(6);
 
-        if (state instanceof LuaState53) {
-            state.openLib(LuaState.Library.UTF8);
-            state.pop(1);
-        } else {
-            state.openLib(LuaState.Library.BIT32);
+            if (state instanceof LuaState53) {
+                state.openLib(LuaState.Library.UTF8);
+                state.pop(1);
+            } else {
+                state.openLib(LuaState.Library.BIT32);
+                state.pop(1);
+            }
+
+            try {
+                state.openLib(LuaState.Library.ERIS);
+                state.pop(1);
+            } catch (IllegalArgumentException e) {
+                persistenceKey = null;
+            }
+
+            if (persistenceKey != null) {
+                persistenceAPI = new OCPersistenceAPI(this, persistenceKey);
+            } else {
+                persistenceAPI = null;
+            }
+
+            state.setConverter(converter);
+
+            KallistiGlobalRegistry.registerGlobal(new ShimComputer(this), "computer", state);
+            KallistiGlobalRegistry.registerGlobal(new ShimSystem(this), "system", state);
+            KallistiGlobalRegistry.registerGlobal(new ShimComponent(this), "component", state);
+            KallistiGlobalRegistry.registerGlobal(shimUserdata = new ShimUserdata(this), "userdata", state);
+            KallistiGlobalRegistry.registerGlobal(new ShimUnicode(font), "unicode", state);
+            state.pop(5);
+
+            // TODO: ShimOS crashes in os.date() (ls -l)
+            //KallistiGlobalRegistry.registerGlobal(new ShimOS(this), "os", state);
+            state.openLib(LuaState.Library.OS);
             state.pop(1);
+
+            addLuaProxy(List.class, new OCUserdataProxyList());
+            addLuaProxy(Map.class, new OCUserdataProxyMap());
+
+            addComponent(selfContext, peripheralComputer = new PeripheralOCComputer());
+
+            registerRules(PeripheralOCEEPROM.class);
+            registerRules(PeripheralOCFilesystem.class);
+            registerRules(PeripheralOCKeyboard.class);
+            registerRules(PeripheralOCScreen.class);
+        } catch (RuntimeException | Error e) {
+            state.close();
+            releaseMemory();
+            throw e;
         }
+    }
 
-        try {
-            state.openLib(LuaState.Library.ERIS);
-            state.pop(1);
-        } catch (IllegalArgumentException e) {
-            persistenceKey = null;
+    /**
+     * Set the maximum time the machine may run without yielding. Once it
+     * is exceeded, the running Lua code is aborted with a "too long without
+     * yielding" error.
+     * @param t The timeout, in seconds; zero or less disables it.
+     * @return This machine.
+     */
+    public MachineOpenComputers setTimeout(double t) {
+        this.timeout = t;
+        return this;
+    }
+
+    /**
+     * @return The maximum time the machine may run without yielding, in
+     * seconds.
+     */
+    public double getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Install or remove the watchdog hook on the machine thread, which is
+     * expected to be at stack index 1. Eris cannot persist the hook, so it
+     * is removed while persisting.
+     *
+     * Hooks are per thread; coroutines are covered by the hooks machine.lua
+     * sets on every coroutine it creates, which enforce the same timeout
+     * through system.timeout().
+     */
+    void setWatchdogHook(boolean enabled) {
+        if (state.type(1) != LuaType.THREAD) {
+            return;
         }
 
-        if (persistenceKey != null) {
-            persistenceAPI = new OCPersistenceAPI(this, persistenceKey);
+        state.getGlobal("debug");
+        state.getField(-1, "sethook");
+        state.remove(-2);
+        state.pushValue(1);
+        if (enabled) {
+            state.pushJavaFunction(watchdog);
+            state.pushString("");
+            state.pushInteger(WATCHDOG_INSTRUCTIONS);
+            state.call(4, 0);
         } else {
-            persistenceAPI = null;
+            state.call(1, 0);
         }
+    }
 
-        state.setConverter(converter);
+    /**
+     * Set the CPU time a single tick may spend resuming the machine to
+     * deliver queued signals. The machine is always resumed at least once
+     * per tick if it has work to do; a budget of zero restricts it to
+     * exactly one resume per tick.
+     * @param t The budget, in seconds.
+     * @return This machine.
+     */
+    public MachineOpenComputers setTickCpuBudget(double t) {
+        this.tickCpuBudgetNanos = (long) (t * 1_000_000_000.0);
+        return this;
+    }
+
+    /**
+     * Set the garbage collection policy of the machine's Lua state. Raising
+     * the pause makes collection cycles triggered by allocations, which
+     * happen while the machine runs, rarer; the idle work done while the
+     * machine sleeps (see idle()) then makes up for it.
+     * Must not be called while the machine is being ticked.
+     * @param mode The collection mode.
+     * @param pause The collector pause, in percent; zero or less keeps the
+     *              current one.
+     * @param stepMultiplier The collector step multiplier, in percent; zero
+     *                       or less keeps the current one.
+     * @return This machine.
+     */
+    public MachineOpenComputers setGcPolicy(GcMode mode, int pause, int stepMultiplier) {
+        LuaState.GcAction modeAction = getGcAction(mode == GcMode.GENERATIONAL ? "GEN" : "INC");
+        if (modeAction == null && mode == GcMode.GENERATIONAL) {
+            modeAction = getGcAction("INC");
+        }
+        if (modeAction != null) {
+            state.gc(modeAction, 0);
+        }
+        if (pause > 0) {
+            state.gc(LuaState.GcAction.SETPAUSE, pause);
+        }
+        if (stepMultiplier > 0) {
+            state.gc(LuaState.GcAction.SETSTEPMUL, stepMultiplier);
+        }
+        return this;
+    }
+
+    /**
+     * Set the amount of garbage collection work done per step while the
+     * machine is idle.
+     * @param size The step size, in kilobytes; zero disables idle garbage
+     *             collection.
+     * @return This machine.
+     */
+    public MachineOpenComputers setIdleGcStepSize(int size) {
+        this.idleGcStepSize = size;
+        return this;
+    }
 
-        KallistiGlobalRegistry.registerGlobal(new ShimComputer(this), "computer", state);
-        KallistiGlobalRegistry.registerGlobal(new ShimSystem(this), "system", state);
-        KallistiGlobalRegistry.registerGlobal(new ShimComponent(this), "component", state);
-        KallistiGlobalRegistry.registerGlobal(shimUserdata = new ShimUserdata(this), "userdata", state);
-        KallistiGlobalRegistry.registerGlobal(new ShimUnicode(font), "unicode", state);
-        state.pop(5);
+    // The collection mode actions only exist for some Lua versions.
+    private static LuaState.GcAction getGcAction(String name) {
+        for (LuaState.GcAction action : LuaState.GcAction.values()) {
+            if (action.name().equals(name)) {
+                return action;
+            }
+        }
+        return null;
+    }
 
-        // TODO: ShimOS crashes in os.date() (ls -l)
-        //KallistiGlobalRegistry.registerGlobal(new ShimOS(this), "os", state);
-        state.openLib(LuaState.Library.OS);
-        state.pop(1);
+    void setLimitMemorySize(boolean v) {
+        if (memoryLimit > 0) {
+            state.setTotalMemory(v ? memoryLimit : Integer.MAX_VALUE);
+        }
+    }
 
-        addLuaProxy(List.class, new OCUserdataProxyList());
-        addLuaProxy(Map.class, new OCUserdataProxyMap());
+    private static boolean is64Bit() {
+        String dataModel = System.getProperty("sun.arch.data.model");
+        if (dataModel != null) {
+            return "64".equals(dataModel);
+        } else {
+            return System.getProperty("os.arch").endsWith("64");
+        }
+    }
 
-        addComponent(selfContext, peripheralComputer = new PeripheralOCComputer());
+    private void releaseMemory() {
+        OCLuaMemoryPool.release(reservedMemory);
+        reservedMemory = 0;
+    }
 
-        registerRules(PeripheralOCEEPROM.class);
-        registerRules(PeripheralOCFilesystem.class);
-        registerRules(PeripheralOCKeyboard.class);
-        registerRules(PeripheralOCScreen.class);
+    private void reserveMemory(long bytes) {
+        if (!OCLuaMemoryPool.reserve(bytes)) {
+            throw new IllegalStateException("Not enough native Lua memory left in pool (" + OCLuaMemoryPool.getReserved() + "/" + OCLuaMemoryPool.getCapacity() + " bytes reserved)!");
+        }
+        reservedMemory += bytes;
     }
 
-    public MachineOpenComputers setTimeout(double t) {
-        this.timeout = t;
-        return this;
+    /**
+     * @return The memory size of the machine, as seen by Lua code, in bytes;
+     * or the native memory limit if the machine is not memory-limited.
+     */
+    public int getTotalMemory() {
+        return memorySize > 0 ? memorySize : state.getTotalMemory();
     }
 
-    void setLimitMemorySize(boolean v) {
+    /**
+     * @return The memory currently allocated by Lua code, in bytes. Memory
+     * used by the machine's own libraries is not counted.
+     */
+    public int getUsedMemory() {
+        long used = (long) state.getTotalMemory() - state.getFreeMemory() - baseMemory;
         if (memorySize > 0) {
-            state.setTotalMemory(v ? memorySize : Integer.MAX_VALUE);
+            used = Math.round(used / (double) memoryScale);
         }
+        return (int) Math.max(0, Math.min(used, getTotalMemory()));
     }
 
-    float getMemorySizeMultiplier() {
-        return memorySizeMultiplier;
+    /**
+     * @return The memory still available to Lua code, in bytes.
+     */
+    public int getFreeMemory() {
+        return getTotalMemory() - getUsedMemory();
     }
 
+    /**
+     * Stop the machine, if running, and release its Lua state along with
+     * its reservation in the OCLuaMemoryPool, if any. The machine may not
+     * be used afterwards.
+     */
+    public void close() throws Exception {
+        if (getState() == MachineState.RUNNING) {
+            stop();
+        }
+        if (state.isOpen()) {
+            state.close();
+        }
+        releaseMemory();
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a resume is running on the machine's executor, the addition is
+     * deferred to the next tick, and true is returned.
+     */
     @Override
     public boolean addComponent(ComponentContext c, Object o) {
+        if (resumeRunning) {
+            pendingComponentChanges.add(() -> addComponent(c, o));
+            return true;
+        }
+
         if (super.addComponent(c, o)) {
             if (o instanceof Peripheral) {
                 peripheralAddressMap.put(getComponentAddress(o), o);
@@ -158,40 +513,162 @@ public class MachineOpenComputers extends Machine {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * If a resume is running on the machine's executor, the additions are
+     * deferred to the next tick, and true is returned.
+     */
     @Override
-    public boolean removeComponent(ComponentContext c) {
-        Peripheral p = getComponent(c, Peripheral.class);
-        String address = "", type = "";
-        if (p != null) {
-            address = getComponentAddress(p);
-            type = getComponentType(p);
+    public boolean addComponents(Map<ComponentContext, Object> components) {
+        if (resumeRunning) {
+            Map<ComponentContext, Object> copy = new LinkedHashMap<>(components);
+            pendingComponentChanges.add(() -> addComponents(copy));
+            return true;
         }
 
-        if (super.removeComponent(c)) {
-            if (p != null) {
-                pushSignal("component_removed", address, type);
-            }
+        return super.addComponents(components);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * If a resume is running on the machine's executor, the removal is
+     * deferred to the next tick, and true is returned.
+     */
+    @Override
+    public boolean removeComponent(ComponentContext c) {
+        if (resumeRunning) {
+            pendingComponentChanges.add(() -> removeComponent(c));
             return true;
-        } else {
-            return false;
+        }
+
+        return super.removeComponent(c);
+    }
+
+    @Override
+    protected void onComponentRemoved(ComponentContext c, Object o) {
+        selfWakingComponents.remove(o);
+
+        if (o instanceof Peripheral) {
+            String address = getComponentAddress(c);
+            peripheralAddressMap.remove(address, o);
+
+            pushSignal("component_removed", address, getComponentType(o));
         }
     }
 
     @Override
     public void initialize() {
+        try {
+            initializeInternal();
+        } catch (RuntimeException | Error e) {
+            // The machine cannot be used after failing to initialize.
+            state.close();
+            releaseMemory();
+            throw e;
+        }
+    }
+
+    private void initializeInternal() {
         super.initialize();
 
         getPersistenceHandler().ifPresent((h) -> ((OCPersistenceAPI) h).initialize());
+
+        // Snapshot the initialized state, so that reboots can restore it
+        // without registering everything again.
+        state.load(RESTORE_STATE_FACTORY, "=restoreState");
+        state.pushString("kallisti_restoreState");
+        state.call(1, 0);
+
+        // Measure the memory used by the machine's own libraries, and grow
+        // the limit past it, so that it only applies to the Lua code run.
+        if (memoryLimit > 0) {
+            setLimitMemorySize(false);
+            state.gc(LuaState.GcAction.COLLECT, 0);
+            baseMemory = state.getTotalMemory() - state.getFreeMemory();
+            reserveMemory(baseMemory);
+            memoryLimit += baseMemory;
+            setLimitMemorySize(true);
+        }
+    }
+
+    /**
+     * Reboot the machine in place, reusing the Lua state: every Lua object
+     * reachable from the registry and the globals is restored to its state
+     * after initialization (as described at RESTORE_STATE_FACTORY), the
+     * previous kernel's memory is collected, and machine.lua is started
+     * again from its cached bytecode.
+     *
+     * Unlike a new machine, the rebooted one keeps the Java-side state of
+     * its components and globals, and the Lua values referenced from Java
+     * code.
+     */
+    private void reboot() throws Exception {
+        state.setTop(0);
+        lastReturned = null;
+        lastReturnedTime = 0;
+        time = 0;
+        cpuTime = 0;
+        syncResultPending = false;
+        signalQueue.clear();
+
+        state.getField(state.REGISTRYINDEX, "kallisti_restoreState");
+        state.call(0, 0);
+
+        // Collect the old kernel fully, so that its garbage does not count
+        // against the new one's memory limit.
+        setLimitMemorySize(false);
+        state.gc(LuaState.GcAction.COLLECT, 0);
+        setLimitMemorySize(true);
+
+        startInternal();
     }
 
     /**
      * Push a new signal to the OpenComputers signal queue. The first
      * parameter is expected to be of type String by most OpenComputers
      * software.
+     *
+     * May be called from any thread. If the queue is full, the signal
+     * overflow policy decides which signal is lost.
+     *
      * @param args The signal, as an array of arguments.
+     * @return Whether the signal has been queued.
+     */
+    public boolean pushSignal(Object... args) {
+        if (signalQueue.offer(args)) {
+            metrics.recordSignalPushed();
+            wakeUp();
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    /**
+     * Set the behaviour of a full signal queue. OpenComputers itself
+     * rejects new signals, which is the default.
+     * @param policy The overflow policy.
+     * @return This machine.
+     */
+    public MachineOpenComputers setSignalOverflowPolicy(RingBufferQueue.OverflowPolicy policy) {
+        signalQueue.setOverflowPolicy(policy);
+        return this;
+    }
+
+    /**
+     * @return The runtime metrics of this machine.
      */
-    public void pushSignal(Object... args) {
-        signalQueue.add(args);
+    public OCMachineMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return The number of signals lost due to the signal queue being full.
+     */
+    public long getDroppedSignalCount() {
+        return signalQueue.getDroppedCount();
     }
 
     /**
@@ -234,7 +711,16 @@ public class MachineOpenComputers extends Machine {
      */
     public String getComponentAddress(Object o) {
         ComponentContext context = o instanceof ComponentContext ? (ComponentContext) o : getContext(o);
-        return context != null ? UUID.nameUUIDFromBytes(context.identifier().getBytes(Charset.forName("UTF-8"))).toString() : null;
+        return context != null ? getAddress(context) : null;
+    }
+
+    /**
+     * @param context The component context.
+     * @return The OpenComputers-style address of the components in the
+     * given context.
+     */
+    static String getAddress(ComponentContext context) {
+        return UUID.nameUUIDFromBytes(context.identifier().getBytes(Charset.forName("UTF-8"))).toString();
     }
 
     /**
@@ -249,18 +735,95 @@ public class MachineOpenComputers extends Machine {
 
     @Override
     public void startInternal() throws Exception {
-        state.load(machineJson, "=machine");
+        halted = false;
+        // The reservation is released whenever the machine stops.
+        if (memoryLimit > 0 && reservedMemory == 0) {
+            reserveMemory(memoryLimit);
+        }
+        loadMachineCode();
         state.newThread();
+        setWatchdogHook(true);
+    }
+
+    /**
+     * Push the machine.lua main function. Its bytecode is compiled once per
+     * Lua version and source, and shared by all machines; the bytecode of
+     * the BYTECODE_CACHE_SIZE most recently used sources is kept.
+     */
+    private void loadMachineCode() throws IOException {
+        String key = getMachineCodeKey();
+        byte[] bytecode = BYTECODE_CACHE.get(key);
+        if (bytecode != null) {
+            state.load(new ByteArrayInputStream(bytecode), "=machine", "b");
+        } else {
+            state.load(machineJson, "=machine");
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            state.dump(stream);
+            BYTECODE_CACHE.put(key, stream.toByteArray());
+        }
+    }
+
+    /**
+     * @return The bytecode cache key of this machine's code: the Lua state
+     * class and a SHA-256 digest of the source, so that the cache does not
+     * hold on to the sources themselves.
+     */
+    private String getMachineCodeKey() {
+        if (machineCodeKey == null) {
+            try {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(machineJson.getBytes(StandardCharsets.UTF_8));
+                StringBuilder builder = new StringBuilder(state.getClass().getName()).append(':');
+                for (byte b : digest) {
+                    builder.append(String.format("%02x", b));
+                }
+                machineCodeKey = builder.toString();
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256.
+                throw new RuntimeException(e);
+            }
+        }
+        return machineCodeKey;
     }
 
     @Override
     public void stopInternal() throws Exception {
+        halt();
+    }
 
+    /**
+     * Drop the machine thread, collect its memory and release the machine's
+     * reservation in the OCLuaMemoryPool; it is reserved again when the
+     * machine is started. Only the machine's own libraries remain in the
+     * Lua state, until it is closed.
+     */
+    private void halt() {
+        if (resumeRunning) {
+            throw new IllegalStateException("Cannot stop the machine while a resume is running!");
+        }
+
+        halted = true;
+        state.setTop(0);
+        lastReturned = null;
+        setLimitMemorySize(false);
+        state.gc(LuaState.GcAction.COLLECT, 0);
+        setLimitMemorySize(true);
+        releaseMemory();
     }
 
     private Object[] lastReturned;
     private double lastReturnedTime, time = 0, cpuTime = 0;
 
+    // Executor mode; the fields above are only accessed by the thread
+    // currently running the machine, handed over through resumeRunning.
+    private Executor executor;
+    private volatile boolean resumeRunning;
+    private volatile boolean resumeResult = true;
+    private volatile Throwable resumeError;
+    private double skippedTickTime;
+    private boolean syncResultPending, inSynchronizedCall;
+    // Set once the machine has shut down or been stopped.
+    private boolean halted;
+
     /**
      * @return The virtual machine CPU time, in seconds.
      */
@@ -275,52 +838,260 @@ public class MachineOpenComputers extends Machine {
         return time;
     }
 
+    /**
+     * Run the machine's Lua code on a given executor instead of the thread
+     * calling tick(). Only one resume of the machine is ever in flight; a
+     * tick which finds the previous resume still running only advances
+     * time. Methods marked with synchronize = true are not run on the
+     * executor; the machine yields them to the ticking thread instead,
+     * which runs them at the start of its next tick.
+     *
+     * While a resume is in flight, the Lua state must not be touched from
+     * other threads; in particular, the machine must not be persisted.
+     * Components added or removed in the meantime are only applied by the
+     * next tick, as the running Lua code reads the component tables, and
+     * tick events are held back until the resume has finished.
+     *
+     * @param executor The executor, or null to run Lua code in tick().
+     * @return This machine.
+     */
+    public MachineOpenComputers setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return Whether a resume of the machine is currently running on its
+     * executor.
+     */
+    public boolean isResumeRunning() {
+        return resumeRunning;
+    }
+
+    /**
+     * Mark a component as calling wakeUp() whenever its tick listener has
+     * work to do. By default, components listening to tick events keep the
+     * machine from being parked while it sleeps; marked components do not.
+     * @param o The component object.
+     */
+    void setSelfWaking(Object o) {
+        selfWakingComponents.add(o);
+    }
+
+    @Override
+    public double getWakeupDelay() {
+        if (executor != null || !signalQueue.isEmpty()
+                || eventHandler.hasListeners(ComponentTickEvent.class, (o) -> !selfWakingComponents.contains(o))) {
+            return 0;
+        }
+
+        Object[] returned = lastReturned;
+        if (returned != null && returned.length > 0 && returned[0] instanceof Number) {
+            return Math.max(0, lastReturnedTime + ((Number) returned[0]).doubleValue() - time);
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * Run incremental garbage collection steps until either the deadline
+     * passes or a collection cycle is finished.
+     */
+    @Override
+    public boolean idle(long deadlineNanos) {
+        if (idleGcStepSize <= 0 || resumeRunning || getState() != MachineState.RUNNING) {
+            return false;
+        }
+
+        do {
+            if (state.gc(LuaState.GcAction.STEP, idleGcStepSize) != 0) {
+                return false;
+            }
+        } while (System.nanoTime() < deadlineNanos);
+        return true;
+    }
+
+    /**
+     * Check whether component methods marked with synchronize = true may
+     * be called directly. This is only the case when the machine runs on
+     * the thread calling tick(), or while a synchronized call yielded by
+     * the machine is being completed.
+     *
+     * @return Whether synchronized methods may be called.
+     */
+    public boolean isSynchronizedContext() {
+        return executor == null || inSynchronizedCall;
+    }
+
+    /**
+     * Set the budget of direct component calls the machine can make per
+     * tick. Each call to a method with a limit or cost consumes part of it;
+     * once it is used up, further such calls are turned into synchronized
+     * calls, which makes the machine yield until the next tick.
+     * @param budget The budget; 1 matches a tier 2 OpenComputers computer.
+     *               Positive infinity disables the limit.
+     * @return This machine.
+     */
+    public MachineOpenComputers setCallBudget(double budget) {
+        this.callBudget = budget;
+        return this;
+    }
+
+    /**
+     * Consume part of the current tick's call budget. Synchronized calls
+     * are not limited.
+     * @param cost The cost of the call.
+     * @return Whether the call may be made directly.
+     */
+    boolean consumeCallBudget(double cost) {
+        if (cost <= 0 || inSynchronizedCall) {
+            return true;
+        } else if (callBudgetLeft < cost) {
+            metrics.recordCallLimitReached();
+            return false;
+        } else {
+            callBudgetLeft -= cost;
+            return true;
+        }
+    }
+
+    private void runSynchronizedCall(LuaValueProxy function) {
+        inSynchronizedCall = true;
+        try {
+            function.pushValue();
+            state.call(0, 1);
+        } finally {
+            inSynchronizedCall = false;
+        }
+        syncResultPending = true;
+    }
+
     @Override
     public boolean tickInternal(double tickTime) throws Exception {
-        int inArgs = 0;
-        if (lastReturned != null && lastReturned.length > 0) {
-            if (lastReturned[0] instanceof Number) {
-                double waitUntil = ((Number) lastReturned[0]).doubleValue();
-                if (!signalQueue.isEmpty()) {
-                    Object[] in = signalQueue.removeFirst();
-                    inArgs = in.length;
-                    for (int i = 0; i < inArgs; i++) {
-                        state.pushJavaObject(in[i]);
-                    }
-                } else if (lastReturnedTime + waitUntil > time + tickTime) {
-                    time += tickTime;
-                    return true;
-                }
-            } else if (lastReturned[0] instanceof Boolean) {
-                boolean reboot = (boolean) lastReturned[0];
-                if (reboot) {
-                    state.pop(state.getTop());
-                    lastReturned = null;
-
-                    // TODO: Should this create a new LuaState?
-
-                    start();
-                    return true;
-                } else {
-                    // Shutdown
-                    return false;
+        if (halted) {
+            return false;
+        } else if (resumeRunning) {
+            skippedTickTime += tickTime;
+            return true;
+        }
+
+        Runnable change;
+        while ((change = pendingComponentChanges.poll()) != null) {
+            change.run();
+        }
+
+        if (executor == null) {
+            if (!runTick(tickTime)) {
+                halt();
+                return false;
+            }
+            return true;
+        }
+
+        Throwable error = resumeError;
+        if (error != null) {
+            resumeError = null;
+            throw error instanceof Exception ? (Exception) error : new RuntimeException(error);
+        } else if (!resumeResult) {
+            halt();
+            return false;
+        }
+
+        if (lastReturned != null && lastReturned.length > 0 && lastReturned[0] instanceof LuaValueProxy && !syncResultPending) {
+            runSynchronizedCall((LuaValueProxy) lastReturned[0]);
+        }
+
+        double runTime = tickTime + skippedTickTime;
+        skippedTickTime = 0;
+        resumeRunning = true;
+        try {
+            executor.execute(() -> {
+                try {
+                    resumeResult = runTick(runTime);
+                } catch (Throwable t) {
+                    resumeError = t;
+                } finally {
+                    resumeRunning = false;
                 }
-            } else if (lastReturned[0] instanceof LuaValueProxy) {
-                // TODO
-            } else if (lastReturned[0] != null) {
-                StringBuilder builder = new StringBuilder("Unknown return types:");
-                for (int i = 0; i < lastReturned.length; i++) {
-                    builder.append(lastReturned[i] == null ? " null" : " " + lastReturned[i].getClass().getName());
+            });
+        } catch (RejectedExecutionException e) {
+            // Nothing is running; let the next tick try again.
+            skippedTickTime = runTime;
+            resumeRunning = false;
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Hold back tick events while a resume is running, as tick listeners
+     * read state written by component methods called from the Lua code.
+     * They are delivered at the first tick after the resume has finished.
+     */
+    @Override
+    protected boolean deferTickEvents() {
+        return resumeRunning;
+    }
+
+    private boolean runTick(double tickTime) throws Exception {
+        long deadline = System.nanoTime() + tickCpuBudgetNanos;
+        boolean resumed = false;
+        callBudgetLeft = callBudget;
+
+        // Keep resuming while the machine is waiting for signals, signals
+        // are queued and the per-tick CPU budget has not been used up.
+        while (true) {
+            int inArgs = 0;
+            if (lastReturned != null && lastReturned.length > 0) {
+                if (lastReturned[0] instanceof Number) {
+                    double waitUntil = ((Number) lastReturned[0]).doubleValue();
+                    Object[] in = signalQueue.poll();
+                    if (in != null) {
+                        metrics.recordSignalDelivered();
+                        inArgs = in.length;
+                        for (int i = 0; i < inArgs; i++) {
+                            state.pushJavaObject(in[i]);
+                        }
+                    } else if (resumed || lastReturnedTime + waitUntil > time + tickTime) {
+                        break;
+                    }
+                } else if (lastReturned[0] instanceof Boolean) {
+                    boolean reboot = (boolean) lastReturned[0];
+                    if (reboot) {
+                        reboot();
+                        return true;
+                    } else {
+                        // Shutdown
+                        return false;
+                    }
+                } else if (lastReturned[0] instanceof LuaValueProxy) {
+                    // A synchronized call; resume with its result.
+                    if (!syncResultPending) {
+                        runSynchronizedCall((LuaValueProxy) lastReturned[0]);
+                    }
+                    syncResultPending = false;
+                    inArgs = 1;
+                } else if (lastReturned[0] != null) {
+                    StringBuilder builder = new StringBuilder("Unknown return types:");
+                    for (int i = 0; i < lastReturned.length; i++) {
+                        builder.append(lastReturned[i] == null ? " null" : " " + lastReturned[i].getClass().getName());
+                    }
+                    throw new Exception(builder.toString());
                 }
-                throw new Exception(builder.toString());
             }
-        }
 
-        long cpuTimeStart = System.nanoTime();
-        int ret = state.resume(1, inArgs);
-        cpuTime += (System.nanoTime() - cpuTimeStart) / 1_000_000_000.0;
+            long cpuTimeStart = System.nanoTime();
+            resumeDeadline = timeout > 0 ? cpuTimeStart + (long) (timeout * 1_000_000_000.0) : Long.MAX_VALUE;
+            int ret = state.resume(1, inArgs);
+            long cpuTimeEnd = System.nanoTime();
+            cpuTime += (cpuTimeEnd - cpuTimeStart) / 1_000_000_000.0;
+            metrics.recordResume(cpuTimeEnd - cpuTimeStart);
+            resumed = true;
+
+            if (ret != LuaState.YIELD) {
+                break;
+            }
 
-        if (ret == LuaState.YIELD) {
             int count = Math.min(state.getTop() - 1, ret);
             if (count > 0) {
                 Object[] args = new Object[count];
@@ -332,13 +1103,38 @@ public class MachineOpenComputers extends Machine {
             } else {
                 lastReturned = null;
             }
-            time += tickTime;
-            lastReturnedTime = time;
+            lastReturnedTime = time + tickTime;
+
+            if (cpuTimeEnd >= deadline || lastReturned == null || !(lastReturned[0] instanceof Number)) {
+                break;
+            }
         }
 
+        time += tickTime;
+        metrics.endTick(tickTime, getUsedMemory(), (long) state.getTotalMemory() - state.getFreeMemory(), cpuTime);
         return true;
     }
 
+    /**
+     * Map a component address read by a component from persisted data to
+     * the address of the corresponding component of this machine; see
+     * OCBootImageCache.
+     * @param address The persisted address.
+     * @return The address in this machine.
+     */
+    String getUnpersistedAddress(String address) {
+        return persistenceAPI != null ? persistenceAPI.mapAddress(address) : address;
+    }
+
+    /**
+     * @return A key identifying the settings a booted image of this machine
+     * depends on: the machine code, the Lua state class and the memory
+     * size and scale.
+     */
+    String getImageSettingsKey() {
+        return getMachineCodeKey() + ":" + memorySize + ":" + memoryScale;
+    }
+
     @Override
     public Optional<Persistable> getPersistenceHandler() {
         return Optional.ofNullable(persistenceAPI);
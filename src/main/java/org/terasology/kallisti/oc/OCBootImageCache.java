@@ -0,0 +1,213 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import org.terasology.kallisti.base.component.Machine;
+import org.terasology.kallisti.base.interfaces.Persistable;
+import org.terasology.kallisti.base.util.PersistenceException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * A cache of booted machine images, allowing machines with identical
+ * configurations to skip booting by unpersisting the image of a template
+ * machine which has already booted.
+ *
+ * Images are keyed by configuration: the classes of the machine's
+ * components, in the order they were added, and for OpenComputers machines
+ * the machine code, Lua state class and memory size. The state of the
+ * components themselves, such as the contents of filesystems, is not part
+ * of the key; machines sharing an image are expected to share it.
+ *
+ * Images are written through OCImagePersistable, which records component
+ * addresses by index; for OCPersistenceAPI, addresses held by Lua code are
+ * persisted as Eris permanents. Restoring an image maps the i-th component
+ * address of the template to the i-th address of the new machine.
+ *
+ * Only the persisted state is carried over. In particular:
+ * <ul>
+ * <li>Java-side state which is not persisted, such as the boot address
+ * set through ShimComputer, starts out unset in the restored machine;</li>
+ * <li>values derived from addresses rather than equal to them are not
+ * remapped; for example, OpenOS names mount points after the first three
+ * characters of filesystem addresses, so the restored machine keeps the
+ * template's mount point names.</li>
+ * </ul>
+ *
+ * The cache keeps the most recently used images, up to a given number.
+ * Images are immutable; the cache may be shared between threads.
+ */
+public class OCBootImageCache {
+    // The number of images kept by default.
+    private static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * A booted machine image.
+     */
+    public static final class Image {
+        private final byte[] data;
+        private final List<Integer> addressIndices;
+
+        private Image(byte[] data, List<Integer> addressIndices) {
+            this.data = data;
+            this.addressIndices = addressIndices;
+        }
+
+        /**
+         * @return The size of the persisted state, in bytes.
+         */
+        public int size() {
+            return data.length;
+        }
+    }
+
+    private final Map<String, Image> images;
+
+    public OCBootImageCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The number of images kept; the least recently used
+     *                 image is dropped first.
+     */
+    public OCBootImageCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        images = Collections.synchronizedMap(new LinkedHashMap<String, Image>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Capture the image of a booted template machine and store it under
+     * the template's configuration.
+     *
+     * @param template The template machine, which must have persistence
+     *                 enabled. It must not be running Lua code at the time.
+     * @return The captured image.
+     * @throws IOException If persisting the machine failed.
+     * @throws PersistenceException If persisting the machine failed.
+     */
+    public Image capture(Machine template) throws IOException, PersistenceException {
+        Optional<Persistable> handler = template.getPersistenceHandler();
+        if (!handler.isPresent() || !(handler.get() instanceof OCImagePersistable)) {
+            throw new PersistenceException("Machine does not support boot images!");
+        }
+
+        List<String> addresses = new ArrayList<>();
+        List<Integer> addressIndices = new ArrayList<>();
+        collectAddresses(template, addresses, addressIndices);
+
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ((OCImagePersistable) handler.get()).persist(stream, addresses);
+
+        Image image = new Image(stream.toByteArray(), Collections.unmodifiableList(addressIndices));
+        images.put(getKey(template), image);
+        return image;
+    }
+
+    /**
+     * @param machine The machine.
+     * @return The image stored for the machine's configuration, if any.
+     */
+    public Optional<Image> get(Machine machine) {
+        return Optional.ofNullable(images.get(getKey(machine)));
+    }
+
+    /**
+     * Remove the image stored for a machine's configuration.
+     *
+     * @param machine The machine.
+     */
+    public void invalidate(Machine machine) {
+        images.remove(getKey(machine));
+    }
+
+    /**
+     * Restore a machine from the image stored for its configuration. The
+     * machine must have persistence enabled, and should have just been
+     * started.
+     *
+     * @param machine The machine.
+     * @return Whether the machine was restored; false if there is no image
+     * for the configuration, or the machine's components do not share
+     * addresses the way the template's did.
+     * @throws IOException If unpersisting the image failed.
+     * @throws PersistenceException If unpersisting the image failed.
+     */
+    public boolean restore(Machine machine) throws IOException, PersistenceException {
+        Image image = images.get(getKey(machine));
+        Optional<Persistable> handler = machine.getPersistenceHandler();
+        if (image == null || !handler.isPresent() || !(handler.get() instanceof OCImagePersistable)) {
+            return false;
+        }
+
+        // Components sharing a context in the template must share one in
+        // the machine, and only those.
+        List<String> addresses = new ArrayList<>();
+        List<Integer> addressIndices = new ArrayList<>();
+        collectAddresses(machine, addresses, addressIndices);
+        if (!addressIndices.equals(image.addressIndices)) {
+            return false;
+        }
+
+        ((OCImagePersistable) handler.get()).unpersist(new ByteArrayInputStream(image.data), addresses);
+        return true;
+    }
+
+    /**
+     * @param machine The machine.
+     * @return The configuration key of the machine.
+     */
+    static String getKey(Machine machine) {
+        StringBuilder builder = new StringBuilder();
+        if (machine instanceof MachineOpenComputers) {
+            builder.append(((MachineOpenComputers) machine).getImageSettingsKey());
+        }
+        for (Object o : machine.getAllComponents()) {
+            builder.append('|').append(o.getClass().getName());
+        }
+        return builder.toString();
+    }
+
+    // Collect the distinct addresses of a machine's components, and the
+    // index of each component's address, in order.
+    private static void collectAddresses(Machine machine, List<String> addresses, List<Integer> addressIndices) {
+        for (Object o : machine.getAllComponents()) {
+            String address = MachineOpenComputers.getAddress(machine.getContext(o));
+            int index = addresses.indexOf(address);
+            if (index < 0) {
+                index = addresses.size();
+                addresses.add(address);
+            }
+            addressIndices.add(index);
+        }
+    }
+}
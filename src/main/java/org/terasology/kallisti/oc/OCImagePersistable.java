@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import org.terasology.kallisti.base.interfaces.Persistable;
+import org.terasology.kallisti.base.util.PersistenceException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * A Persistable which can refer to component addresses by their index in
+ * a list rather than by value, so that the persisted data can be restored
+ * into a machine whose components have different addresses. Used by
+ * OCBootImageCache.
+ */
+interface OCImagePersistable extends Persistable {
+    /**
+     * Persist the machine, recording every occurrence of one of the given
+     * addresses by its index.
+     *
+     * @param data The stream to write to.
+     * @param addresses The component addresses, without duplicates.
+     */
+    void persist(OutputStream data, List<String> addresses) throws IOException, PersistenceException;
+
+    /**
+     * Unpersist data written by persist(OutputStream, List), replacing the
+     * i-th address recorded by the i-th given address.
+     *
+     * @param data The stream to read from.
+     * @param addresses The component addresses, without duplicates; or null
+     *                  to keep the recorded ones.
+     */
+    void unpersist(InputStream data, List<String> addresses) throws IOException, PersistenceException;
+}
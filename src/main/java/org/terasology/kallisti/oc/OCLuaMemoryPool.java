@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A JVM-wide cap on the native memory Lua states of OpenComputers machines
+ * may allocate. Every memory-limited machine reserves its native memory
+ * limit from the pool when it is constructed, and fails to construct or
+ * start if the pool cannot accommodate it. The reservation is released
+ * when the machine stops, shuts down, fails to construct or initialize,
+ * or is closed, and taken again when it is started.
+ *
+ * A stopped machine which has not been closed keeps only its libraries
+ * in its Lua state; this memory is not accounted for. Neither are
+ * machines without a memory limit.
+ */
+public final class OCLuaMemoryPool {
+    private static final AtomicLong reserved = new AtomicLong();
+    private static volatile long capacity = Long.MAX_VALUE;
+
+    private OCLuaMemoryPool() {
+
+    }
+
+    /**
+     * Set the capacity of the pool. Lowering it below the currently reserved
+     * amount does not affect open machines, but no new reservations will
+     * succeed until enough memory has been released.
+     *
+     * @param bytes The capacity, in bytes.
+     */
+    public static void setCapacity(long bytes) {
+        capacity = bytes;
+    }
+
+    /**
+     * @return The capacity of the pool, in bytes.
+     */
+    public static long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The amount of memory currently reserved by open machines, in
+     * bytes.
+     */
+    public static long getReserved() {
+        return reserved.get();
+    }
+
+    static boolean reserve(long bytes) {
+        long current;
+        do {
+            current = reserved.get();
+            if (bytes > capacity - current) {
+                return false;
+            }
+        } while (!reserved.compareAndSet(current, current + bytes));
+        return true;
+    }
+
+    static void release(long bytes) {
+        reserved.addAndGet(-bytes);
+    }
+}
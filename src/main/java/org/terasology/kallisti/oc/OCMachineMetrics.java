@@ -0,0 +1,226 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Runtime metrics of a single MachineOpenComputers.
+ *
+ * The resume and delivered signal counters are only updated by the thread
+ * running the machine's Lua code, which also ends every tick and publishes
+ * them. That is the thread calling tick(), or, in executor mode, whichever
+ * executor thread runs the resume; the machine hands its state over from
+ * one such thread to the next, so the counters are never updated by two
+ * threads at once. Signal, component call and synchronization counters
+ * may be updated from any thread; per-tick snapshots of them are taken at
+ * the end of every tick. All getters may be called from any thread.
+ * Recording never allocates.
+ */
+public class OCMachineMetrics implements OCMachineMetricsMXBean {
+    private static final int LATENCY_BUCKETS = 24;
+
+    private final LongSupplier signalsDropped;
+    private final AtomicLongArray resumeLatency = new AtomicLongArray(LATENCY_BUCKETS);
+    private final AtomicLong signalsPushed = new AtomicLong();
+    private final AtomicLong syncBytes = new AtomicLong();
+    private final AtomicLong callLimitsReached = new AtomicLong();
+    private final AtomicLong windowCalls = new AtomicLong();
+
+    // Only accessed by the thread running the machine's Lua code.
+    private int tickResumes, tickSignals;
+    private long lastSignalsPushed, lastSignalsDropped;
+    private double windowTime;
+
+    // Published at the end of each tick.
+    private volatile long resumeCount, signalsDelivered, memoryUsed, nativeMemoryUsed;
+    private volatile int resumesLastTick, signalsDeliveredLastTick;
+    private volatile int signalsPushedLastTick, signalsDroppedLastTick;
+    private volatile double componentCallsPerSecond, cpuTime;
+
+    private ObjectName objectName;
+
+    OCMachineMetrics(LongSupplier signalsDropped) {
+        this.signalsDropped = signalsDropped;
+    }
+
+    void recordResume(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros < 2 ? 0 : Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        resumeLatency.incrementAndGet(bucket);
+        tickResumes++;
+    }
+
+    void recordSignalPushed() {
+        signalsPushed.incrementAndGet();
+    }
+
+    void recordSignalDelivered() {
+        tickSignals++;
+    }
+
+    void recordComponentCall() {
+        windowCalls.incrementAndGet();
+    }
+
+    void recordCallLimitReached() {
+        callLimitsReached.incrementAndGet();
+    }
+
+    void recordSyncBytes(long bytes) {
+        syncBytes.addAndGet(bytes);
+    }
+
+    void endTick(double tickTime, long memoryUsed, long nativeMemoryUsed, double cpuTime) {
+        resumeCount += tickResumes;
+        signalsDelivered += tickSignals;
+        resumesLastTick = tickResumes;
+        signalsDeliveredLastTick = tickSignals;
+        tickResumes = 0;
+        tickSignals = 0;
+
+        long pushed = signalsPushed.get();
+        long dropped = signalsDropped.getAsLong();
+        signalsPushedLastTick = (int) (pushed - lastSignalsPushed);
+        signalsDroppedLastTick = (int) (dropped - lastSignalsDropped);
+        lastSignalsPushed = pushed;
+        lastSignalsDropped = dropped;
+
+        windowTime += tickTime;
+        if (windowTime >= 1.0) {
+            componentCallsPerSecond = windowCalls.getAndSet(0) / windowTime;
+            windowTime = 0;
+        }
+
+        this.memoryUsed = memoryUsed;
+        this.nativeMemoryUsed = nativeMemoryUsed;
+        this.cpuTime = cpuTime;
+    }
+
+    /**
+     * Export these metrics through the platform MBean server.
+     *
+     * @param name The name of the machine, used as part of the MBean's
+     *             object name.
+     * @return The object name the metrics were registered under.
+     * @throws JMException If the registration failed.
+     */
+    public synchronized ObjectName registerMBean(String name) throws JMException {
+        unregisterMBean();
+        ObjectName objectName = new ObjectName("org.terasology.kallisti:type=MachineOpenComputers,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        this.objectName = objectName;
+        return objectName;
+    }
+
+    /**
+     * Stop exporting these metrics through the platform MBean server, if
+     * they are exported.
+     *
+     * @throws JMException If the unregistration failed.
+     */
+    public synchronized void unregisterMBean() throws JMException {
+        if (objectName != null) {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            objectName = null;
+        }
+    }
+
+    @Override
+    public long getResumeCount() {
+        return resumeCount;
+    }
+
+    @Override
+    public int getResumesLastTick() {
+        return resumesLastTick;
+    }
+
+    @Override
+    public long[] getResumeLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = resumeLatency.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getSignalsPushed() {
+        return signalsPushed.get();
+    }
+
+    @Override
+    public int getSignalsPushedLastTick() {
+        return signalsPushedLastTick;
+    }
+
+    @Override
+    public long getSignalsDropped() {
+        return signalsDropped.getAsLong();
+    }
+
+    @Override
+    public int getSignalsDroppedLastTick() {
+        return signalsDroppedLastTick;
+    }
+
+    @Override
+    public long getSignalsDelivered() {
+        return signalsDelivered;
+    }
+
+    @Override
+    public int getSignalsDeliveredLastTick() {
+        return signalsDeliveredLastTick;
+    }
+
+    @Override
+    public long getMemoryUsed() {
+        return memoryUsed;
+    }
+
+    @Override
+    public long getNativeMemoryUsed() {
+        return nativeMemoryUsed;
+    }
+
+    @Override
+    public double getComponentCallsPerSecond() {
+        return componentCallsPerSecond;
+    }
+
+    @Override
+    public long getSyncBytes() {
+        return syncBytes.get();
+    }
+
+    @Override
+    public long getCallLimitsReached() {
+        return callLimitsReached.get();
+    }
+
+    @Override
+    public double getCpuTime() {
+        return cpuTime;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+/**
+ * JMX view of the runtime metrics of a MachineOpenComputers.
+ *
+ * @see OCMachineMetrics
+ */
+public interface OCMachineMetricsMXBean {
+    /**
+     * @return The total number of resumes of the machine thread.
+     */
+    long getResumeCount();
+
+    /**
+     * @return The number of resumes during the last tick.
+     */
+    int getResumesLastTick();
+
+    /**
+     * @return The resume latency histogram. Bucket 0 counts resumes shorter
+     * than 2 microseconds; bucket i counts resumes taking between 2^i and
+     * 2^(i+1) microseconds; the last bucket counts all longer resumes.
+     */
+    long[] getResumeLatencyHistogram();
+
+    /**
+     * @return The total number of signals queued.
+     */
+    long getSignalsPushed();
+
+    /**
+     * @return The number of signals queued between the end of the tick
+     * before last and the end of the last tick.
+     */
+    int getSignalsPushedLastTick();
+
+    /**
+     * @return The total number of signals lost due to a full signal queue.
+     */
+    long getSignalsDropped();
+
+    /**
+     * @return The number of signals lost between the end of the tick before
+     * last and the end of the last tick.
+     */
+    int getSignalsDroppedLastTick();
+
+    /**
+     * @return The total number of signals delivered to the machine.
+     */
+    long getSignalsDelivered();
+
+    /**
+     * @return The number of signals delivered during the last tick.
+     */
+    int getSignalsDeliveredLastTick();
+
+    /**
+     * @return The memory used by the machine's Lua code at the end of the
+     * last tick, in bytes, as reported to it by computer.freeMemory(); see
+     * MachineOpenComputers.getUsedMemory().
+     */
+    long getMemoryUsed();
+
+    /**
+     * @return The native memory allocated by the machine's Lua state at the
+     * end of the last tick, in bytes. Unlike getMemoryUsed(), this includes
+     * the machine's own libraries and is not scaled back for 64-bit JVMs.
+     */
+    long getNativeMemoryUsed();
+
+    /**
+     * @return The number of component method calls per second of machine
+     * time, averaged over roughly the last second.
+     */
+    double getComponentCallsPerSecond();
+
+    /**
+     * @return The total number of bytes written in synchronization packets.
+     */
+    long getSyncBytes();
+
+    /**
+     * @return The number of direct component calls deferred due to the
+     * per-tick call budget being used up.
+     */
+    long getCallLimitsReached();
+
+    /**
+     * @return The virtual machine CPU time at the end of the last tick, in
+     * seconds.
+     */
+    double getCpuTime();
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright 2018 Adrian Siekierka, MovingBlocks
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.terasology.kallisti.oc;
+
+import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
+import org.terasology.kallisti.base.util.KallistiArgUtils;
+import org.terasology.kallisti.jnlua.KallistiInvokers;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * The table of component methods of a given class, used to dispatch
+ * component.invoke() calls.
+ *
+ * Overloads are resolved for every argument count at construction time, and
+ * each method is unreflected into a MethodHandle along with its argument
+ * conversion plan and result pusher, so that invoking a method does not
+ * require reflection.
+ * Tables are cached per class and shared by all machines.
+ */
+final class OCMethodTable {
+    private static final MethodHandle GET_ARGUMENT;
+
+    static {
+        try {
+            GET_ARGUMENT = MethodHandles.lookup().findStatic(OCMethodTable.class, "getArgument",
+                    MethodType.methodType(Object.class, Object[].class, int.class, byte.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ClassValue<OCMethodTable> TABLES = new ClassValue<OCMethodTable>() {
+        @Override
+        protected OCMethodTable computeValue(Class<?> type) {
+            return new OCMethodTable(type);
+        }
+    };
+
+    // Argument conversions; numbers passed to primitive parameters are
+    // converted, as Lua does not distinguish between numeric types.
+    private static final byte ARG_PLAIN = 0;
+    private static final byte ARG_OPTIONAL = 1;
+    private static final byte ARG_INT = 2;
+    private static final byte ARG_LONG = 3;
+    private static final byte ARG_DOUBLE = 4;
+    private static final byte ARG_FLOAT = 5;
+    private static final byte ARG_SHORT = 6;
+    private static final byte ARG_BYTE = 7;
+
+    /**
+     * A component method prepared for invocation.
+     */
+    static final class Invoker {
+        private final ComponentMethod annotation;
+        // (Object, Object[], ReturnSink)void
+        private final MethodHandle handle;
+        private final String accessError;
+        private final double cost;
+
+        private Invoker(Method method, ComponentMethod annotation) {
+            this.annotation = annotation;
+            this.cost = annotation.cost() > 0 ? annotation.cost() : (annotation.limit() > 0 ? 1.0 / annotation.limit() : 0);
+
+            MethodHandle handle = null;
+            String accessError = null;
+            try {
+                handle = createHandle(method, annotation);
+            } catch (IllegalAccessException e) {
+                accessError = e.getMessage();
+            }
+            this.handle = handle;
+            this.accessError = accessError;
+        }
+
+        ComponentMethod getAnnotation() {
+            return annotation;
+        }
+
+        /**
+         * @return The share of the per-tick call budget consumed by a call.
+         */
+        double getCost() {
+            return cost;
+        }
+
+        /**
+         * Invoke the method, converting the arguments as required, and push
+         * its results to a sink.
+         *
+         * @param target The component.
+         * @param args The arguments passed from Lua.
+         * @param sink The sink.
+         * @return The exception thrown by the method, or null if it
+         * succeeded. Any results pushed before it was thrown are not
+         * removed from the sink.
+         */
+        Throwable invoke(Object target, Object[] args, ReturnSink sink) {
+            if (handle == null) {
+                return new IllegalAccessException(accessError);
+            }
+
+            try {
+                handle.invokeExact(target, args, sink);
+                return null;
+            } catch (Throwable t) {
+                return t;
+            }
+        }
+    }
+
+    private static MethodHandle createHandle(Method method, ComponentMethod annotation) throws IllegalAccessException {
+        Class[] types = method.getParameterTypes();
+        MethodHandle target = MethodHandles.publicLookup().unreflect(method).asFixedArity();
+        target = target.asType(target.type().changeParameterType(0, Object.class));
+
+        // Replace every argument parameter with a reader of type
+        // (Object[])T, then merge all of the Object[] and ReturnSink
+        // parameters into one each.
+        int[] reorder = new int[types.length + 1];
+        int argIndex = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == ReturnSink.class) {
+                reorder[i + 1] = 2;
+            } else {
+                MethodHandle reader = MethodHandles.insertArguments(GET_ARGUMENT, 1, argIndex++, getConversion(types[i]));
+                target = MethodHandles.filterArguments(target, i + 1, reader.asType(reader.type().changeReturnType(types[i])));
+                reorder[i + 1] = 1;
+            }
+        }
+
+        Class returnType = target.type().returnType();
+        target = MethodHandles.permuteArguments(target, MethodType.methodType(returnType, Object.class, Object[].class, ReturnSink.class), reorder);
+
+        if (returnType == void.class) {
+            return target;
+        }
+
+        MethodHandle pusher = KallistiInvokers.createResultPusher(returnType, annotation.returnsMultipleArguments());
+        pusher = MethodHandles.dropArguments(pusher, 1, Object.class, Object[].class);
+        return MethodHandles.foldArguments(pusher, target);
+    }
+
+    private static Object getArgument(Object[] args, int index, byte conversion) {
+        return convert(conversion, index < args.length ? args[index] : null);
+    }
+
+    private static byte getConversion(Class type) {
+        if (type == Optional.class) {
+            return ARG_OPTIONAL;
+        } else if (type == int.class) {
+            return ARG_INT;
+        } else if (type == long.class) {
+            return ARG_LONG;
+        } else if (type == double.class) {
+            return ARG_DOUBLE;
+        } else if (type == float.class) {
+            return ARG_FLOAT;
+        } else if (type == short.class) {
+            return ARG_SHORT;
+        } else if (type == byte.class) {
+            return ARG_BYTE;
+        } else {
+            return ARG_PLAIN;
+        }
+    }
+
+    private static Object convert(byte conversion, Object o) {
+        if (conversion == ARG_OPTIONAL) {
+            return Optional.ofNullable(o);
+        } else if (conversion == ARG_PLAIN || !(o instanceof Number)) {
+            return o;
+        }
+
+        Number n = (Number) o;
+        switch (conversion) {
+            case ARG_INT:
+                return n.intValue();
+            case ARG_LONG:
+                return n.longValue();
+            case ARG_DOUBLE:
+                return n.doubleValue();
+            case ARG_FLOAT:
+                return n.floatValue();
+            case ARG_SHORT:
+                return n.shortValue();
+            default:
+                return n.byteValue();
+        }
+    }
+
+    // Indexed by argument count; the last entry covers all larger counts.
+    private final Map<String, Invoker[]> invokers = new HashMap<>();
+    private final Map<String, Boolean> directFlags = new LinkedHashMap<>();
+
+    private OCMethodTable(Class<?> type) {
+        Map<String, List<Method>> methodsByName = new LinkedHashMap<>();
+        for (Method m : type.getMethods()) {
+            ComponentMethod pm = m.getAnnotation(ComponentMethod.class);
+            if (pm != null) {
+                String name = pm.name().isEmpty() ? m.getName() : pm.name();
+                methodsByName.computeIfAbsent(name, (k) -> new ArrayList<>()).add(m);
+                directFlags.put(name, !pm.synchronize());
+            }
+        }
+
+        Map<Method, Invoker> prepared = new HashMap<>();
+        for (Map.Entry<String, List<Method>> entry : methodsByName.entrySet()) {
+            List<Method> methods = entry.getValue();
+            int maxCount = 0;
+            for (Method m : methods) {
+                maxCount = Math.max(maxCount, KallistiArgUtils.getArgumentTypes(m).length);
+            }
+
+            Invoker[] byCount = new Invoker[maxCount + 2];
+            for (int i = 0; i < byCount.length; i++) {
+                Optional<Method> om = KallistiArgUtils.findClosestMethod(i, methods.stream(), true);
+                if (om.isPresent()) {
+                    byCount[i] = prepared.computeIfAbsent(om.get(), (m) -> new Invoker(m, m.getAnnotation(ComponentMethod.class)));
+                }
+            }
+            invokers.put(entry.getKey(), byCount);
+        }
+    }
+
+    static OCMethodTable get(Class<?> type) {
+        return TABLES.get(type);
+    }
+
+    /**
+     * Find the method to invoke for a given name and argument count.
+     *
+     * @param name The method name.
+     * @param argCount The argument count.
+     * @return The invoker, or null if no method matches.
+     */
+    Invoker find(String name, int argCount) {
+        Invoker[] byCount = invokers.get(name);
+        if (byCount == null) {
+            return null;
+        }
+        return byCount[Math.min(argCount, byCount.length - 1)];
+    }
+
+    /**
+     * @return A map of method names to whether they may be called directly,
+     * in declaration order.
+     */
+    Map<String, Boolean> getDirectFlags() {
+        return Collections.unmodifiableMap(directFlags);
+    }
+}
@@ -23,11 +23,17 @@ import org.terasology.kallisti.base.util.PersistenceException;
 import java.io.*;
 import java.util.*;
 
-public class OCPersistenceAPI implements Persistable {
-	private static final int CURRENT_VERSION = 0x01;
+public class OCPersistenceAPI implements OCImagePersistable {
+	private static final int CURRENT_VERSION = 0x02;
+	// Permanent keys standing in for component addresses are this prefix
+	// followed by the address' index; other keys start with "_G".
+	private static final String ADDRESS_KEY_PREFIX = "address:";
 
 	private final MachineOpenComputers machine;
 	private String persistenceKey;
+	// Maps persisted component addresses to this machine's while
+	// unpersisting.
+	private Map<String, String> addressMap = Collections.emptyMap();
 
 	OCPersistenceAPI(MachineOpenComputers machine, String persistenceKey) {
 		this.machine = machine;
@@ -125,6 +131,37 @@ public class OCPersistenceAPI implements Persistable {
 		state.setGlobal("persistKey");
 	}
 
+	// Add or remove the permanents standing in for the given component
+	// addresses, in "perms" (value to key) or "uperms" (key to value).
+	private void setAddressPermanents(String table, List<String> addresses, boolean add) {
+		LuaState state = machine.getLuaState();
+		boolean byValue = table.equals("perms");
+		state.getField(state.REGISTRYINDEX, table);
+		for (int i = 0; i < addresses.size(); i++) {
+			String key = ADDRESS_KEY_PREFIX + i;
+			state.pushString(byValue ? addresses.get(i) : key);
+			if (add) {
+				state.pushString(byValue ? key : addresses.get(i));
+			} else {
+				state.pushNil();
+			}
+			state.rawSet(-3);
+		}
+		state.pop(1);
+	}
+
+	/**
+	 * Map a component address read from persisted data to the address of
+	 * the corresponding component of this machine. Addresses only differ
+	 * while unpersisting an image taken from another machine.
+	 *
+	 * @param address The persisted address.
+	 * @return The address of the component in this machine.
+	 */
+	String mapAddress(String address) {
+		return addressMap.getOrDefault(address, address);
+	}
+
 	private byte[] persistState(int index) throws PersistenceException {
 		LuaState state = machine.getLuaState();
 		try {
@@ -192,17 +229,33 @@ public class OCPersistenceAPI implements Persistable {
 
 	@Override
 	public void persist(OutputStream data) throws IOException, PersistenceException {
+		persist(data, Collections.emptyList());
+	}
+
+	@Override
+	public void persist(OutputStream data, List<String> addresses) throws IOException, PersistenceException {
 		DataOutputStream stream = new DataOutputStream(data);
 		stream.writeShort(CURRENT_VERSION); // version
 		stream.writeUTF(persistenceKey);
+		stream.writeInt(addresses.size());
+		for (String address : addresses) {
+			stream.writeUTF(address);
+		}
 
 		// persist Lua side
 		machine.setLimitMemorySize(false);
+		machine.setWatchdogHook(false);
 
-		byte[] kernel = persistState(1);
+		byte[] kernel;
 		byte[] stack = new byte[0];
-		if (machine.getLuaState().isFunction(2) || machine.getLuaState().isTable(2)) {
-			stack = persistState(2);
+		setAddressPermanents("perms", addresses, true);
+		try {
+			kernel = persistState(1);
+			if (machine.getLuaState().isFunction(2) || machine.getLuaState().isTable(2)) {
+				stack = persistState(2);
+			}
+		} finally {
+			setAddressPermanents("perms", addresses, false);
 		}
 
 		if (kernel != null) {
@@ -219,6 +272,7 @@ public class OCPersistenceAPI implements Persistable {
 			stream.writeInt(0);
 		}
 
+		machine.setWatchdogHook(true);
 		machine.setLimitMemorySize(true);
 
 		// persist components
@@ -238,6 +292,11 @@ public class OCPersistenceAPI implements Persistable {
 
 	@Override
 	public void unpersist(InputStream data) throws IOException, PersistenceException {
+		unpersist(data, null);
+	}
+
+	@Override
+	public void unpersist(InputStream data, List<String> addresses) throws IOException, PersistenceException {
 		DataInputStream stream = new DataInputStream(data);
 		int ver = stream.readShort();
 		if (ver > CURRENT_VERSION) {
@@ -245,47 +304,74 @@ public class OCPersistenceAPI implements Persistable {
 		}
 
 		persistenceKey = stream.readUTF();
+		List<String> persistedAddresses = new ArrayList<>();
+		if (ver >= 0x02) {
+			int count = stream.readInt();
+			for (int i = 0; i < count; i++) {
+				persistedAddresses.add(stream.readUTF());
+			}
+		}
+		if (addresses == null) {
+			addresses = persistedAddresses;
+		} else if (addresses.size() != persistedAddresses.size()) {
+			throw new PersistenceException("Expected " + persistedAddresses.size() + " component addresses, got " + addresses.size());
+		}
 		configure();
 
-		// unpersist Lua side
-		machine.setLimitMemorySize(false);
-		machine.getLuaState().setTop(0); // clear stack
-
-		int kernelLength = stream.readInt();
-		if (kernelLength > 0) {
-			byte[] kernel = new byte[kernelLength];
-			stream.read(kernel);
-			unpersistState(kernel);
-
-			int stackLength = stream.readInt();
-			if (stackLength > 0) {
-				byte[] stack = new byte[stackLength];
-				stream.read(stack);
-				unpersistState(stack);
-				if (!machine.getLuaState().isTable(2) && !machine.getLuaState().isFunction(2)) {
-					throw new PersistenceException("invalid stack type");
-				}
-			}
+		addressMap = new HashMap<>();
+		for (int i = 0; i < addresses.size(); i++) {
+			addressMap.put(persistedAddresses.get(i), addresses.get(i));
 		}
 
-		machine.setLimitMemorySize(true);
+		try {
+			// unpersist Lua side
+			machine.setLimitMemorySize(false);
+			machine.getLuaState().setTop(0); // clear stack
 
-		// unpersist components
-		Map<String, Persistable> m = assemblePersistableMap();
-		int msize = stream.readInt();
-		for (int i = 0; i < msize; i++) {
-			String addr = stream.readUTF();
-			if (m.containsKey(addr)) {
-				byte[] cData = new byte[stream.readInt()];
-				if (stream.read(cData) == cData.length) {
-					ByteArrayInputStream s = new ByteArrayInputStream(cData);
-					m.get(addr).unpersist(s);
+			int kernelLength = stream.readInt();
+			if (kernelLength > 0) {
+				setAddressPermanents("uperms", addresses, true);
+				try {
+					byte[] kernel = new byte[kernelLength];
+					stream.read(kernel);
+					unpersistState(kernel);
+					machine.setWatchdogHook(true);
+
+					int stackLength = stream.readInt();
+					if (stackLength > 0) {
+						byte[] stack = new byte[stackLength];
+						stream.read(stack);
+						unpersistState(stack);
+						if (!machine.getLuaState().isTable(2) && !machine.getLuaState().isFunction(2)) {
+							throw new PersistenceException("invalid stack type");
+						}
+					}
+				} finally {
+					setAddressPermanents("uperms", addresses, false);
 				}
-			} else {
-				// No component found
-				int v = stream.readInt();
-				stream.skipBytes(v);
 			}
+
+			machine.setLimitMemorySize(true);
+
+			// unpersist components
+			Map<String, Persistable> m = assemblePersistableMap();
+			int msize = stream.readInt();
+			for (int i = 0; i < msize; i++) {
+				String addr = mapAddress(stream.readUTF());
+				if (m.containsKey(addr)) {
+					byte[] cData = new byte[stream.readInt()];
+					if (stream.read(cData) == cData.length) {
+						ByteArrayInputStream s = new ByteArrayInputStream(cData);
+						m.get(addr).unpersist(s);
+					}
+				} else {
+					// No component found
+					int v = stream.readInt();
+					stream.skipBytes(v);
+				}
+			}
+		} finally {
+			addressMap = Collections.emptyMap();
 		}
 	}
 }
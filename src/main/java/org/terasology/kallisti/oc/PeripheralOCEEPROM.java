@@ -89,7 +89,7 @@ public class PeripheralOCEEPROM implements Peripheral {
         return getString(codeSize, dataSize);
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public void setData(String data) {
         setString(codeSize, dataSize, data);
     }
@@ -99,7 +99,7 @@ public class PeripheralOCEEPROM implements Peripheral {
         return getString(0, codeSize);
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public void set(String data) {
         setString(0, codeSize, data);
     }
@@ -114,7 +114,7 @@ public class PeripheralOCEEPROM implements Peripheral {
         }
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public void setLabel(String label) {
         ComponentContext ctx = machine.getContext(this);
         if (ctx instanceof Labelable) {
@@ -96,7 +96,7 @@ public class PeripheralOCFilesystem implements Peripheral {
         return "";
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public String setLabel(String l) {
         ComponentContext context = machine.getContext(this);
         if (context instanceof Labelable) {
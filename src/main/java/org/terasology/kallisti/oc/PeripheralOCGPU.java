@@ -16,8 +16,11 @@
 
 package org.terasology.kallisti.oc;
 
+import org.terasology.kallisti.base.component.ComponentEventListener;
 import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ComponentRemovedEvent;
 import org.terasology.kallisti.base.component.Peripheral;
+import org.terasology.kallisti.base.component.ReturnSink;
 import org.terasology.kallisti.base.interfaces.FrameBuffer;
 import org.terasology.kallisti.base.interfaces.Persistable;
 import org.terasology.kallisti.base.interfaces.Synchronizable;
@@ -74,7 +77,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
     	command.apply(renderer);
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public boolean bind(String address) {
         for (FrameBuffer b : machine.getComponentsByClass(FrameBuffer.class)) {
             if (machine.getComponentAddress(b).equals(address)) {
@@ -87,6 +90,14 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         return false;
     }
 
+    @ComponentEventListener
+    public void onComponentRemoved(ComponentRemovedEvent event) {
+        if (screenAddr != null && event.getComponent() instanceof FrameBuffer
+                && screenAddr.equals(machine.getComponentAddress(event.getContext()))) {
+            screenAddr = null;
+        }
+    }
+
     @ComponentMethod
     public String getScreen() {
         return screenAddr;
@@ -98,7 +109,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         return i >= 0 && i < renderer.getPaletteSize() ? renderer.getPaletteColor(i) : 0;
     }
 
-    @ComponentMethod
+    @ComponentMethod(limit = 128)
     public void setPaletteColor(Number index, Number value) {
         int i = index.intValue();
         if (i >= 0 && i < renderer.getAccessiblePaletteSize()) {
@@ -106,28 +117,31 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         }
     }
 
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] getResolution() {
-	    return new int[] { renderer.getWidth(), renderer.getHeight() };
+    @ComponentMethod
+    public void getResolution(ReturnSink sink) {
+        sink.pushInteger(renderer.getWidth());
+        sink.pushInteger(renderer.getHeight());
     }
 
     // TODO: plan9k???
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] getResolution(Object o) {
-	    return new int[] { renderer.getWidth(), renderer.getHeight() };
+    @ComponentMethod
+    public void getResolution(Object o, ReturnSink sink) {
+        getResolution(sink);
     }
 
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] getViewport() {
-        return new int[] { renderer.getViewportWidth(), renderer.getViewportHeight() };
+    @ComponentMethod
+    public void getViewport(ReturnSink sink) {
+        sink.pushInteger(renderer.getViewportWidth());
+        sink.pushInteger(renderer.getViewportHeight());
     }
 
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] maxResolution() {
-        return new int[] { maxWidth, maxHeight };
+    @ComponentMethod
+    public void maxResolution(ReturnSink sink) {
+        sink.pushInteger(maxWidth);
+        sink.pushInteger(maxHeight);
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public boolean setViewport(Number widthN, Number heightN) {
         int width = widthN.intValue();
         int height = heightN.intValue();
@@ -148,7 +162,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         }
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public boolean setResolution(Number widthN, Number heightN) {
         int width = widthN.intValue();
         int height = heightN.intValue();
@@ -186,8 +200,9 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         return v;
     }
 
-    private int[] getOldColorReturn(int palIdx) {
-    	return new int[] { renderer.getPaletteColor(palIdx), palIdx };
+    private void pushOldColor(ReturnSink sink, int palIdx) {
+        sink.pushInteger(renderer.getPaletteColor(palIdx));
+        sink.pushInteger(palIdx);
     }
 
     @ComponentMethod
@@ -196,9 +211,9 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
     }
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] setBackground(Number color, Optional<Boolean> isPaletteIndex) {
-        int[] oldColorReturn = getOldColorReturn(bgColor);
+    @ComponentMethod(limit = 128)
+    public void setBackground(Number color, Optional<Boolean> isPaletteIndex, ReturnSink sink) {
+        pushOldColor(sink, bgColor);
         int colorCount = renderer.getAccessiblePaletteSize();
 
         if (isPaletteIndex.orElse(false) && color.intValue() >= 0 && color.intValue() < colorCount) {
@@ -206,8 +221,6 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         } else {
             bgColor = findNearest(color.intValue(), colorCount);
         }
-
-        return oldColorReturn;
     }
 
     @ComponentMethod
@@ -216,9 +229,9 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
     }
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    @ComponentMethod(returnsMultipleArguments = true)
-    public int[] setForeground(Number color, Optional<Boolean> isPaletteIndex) {
-        int[] oldColorReturn = getOldColorReturn(fgColor);
+    @ComponentMethod(limit = 128)
+    public void setForeground(Number color, Optional<Boolean> isPaletteIndex, ReturnSink sink) {
+        pushOldColor(sink, fgColor);
         int colorCount = renderer.getAccessiblePaletteSize();
 
         if (isPaletteIndex.orElse(false) && color.intValue() >= 0 && color.intValue() < colorCount) {
@@ -226,8 +239,6 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         } else {
             fgColor = findNearest(color.intValue(), colorCount);
         }
-
-        return oldColorReturn;
     }
 
     @ComponentMethod
@@ -240,7 +251,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         return bitDepth;
     }
 
-    @ComponentMethod
+    @ComponentMethod(synchronize = true)
     public boolean setDepth(int depth) {
         if (depth >= 1 && depth <= bitDepth) {
             renderer.setBitDepthUsed(depth);
@@ -250,29 +261,33 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         }
     }
 
-    // Drawing commands
-    @ComponentMethod(returnsMultipleArguments = true)
-    public Object[] get(Number x, Number y) {
+    // Drawing commands; their call limits roughly follow the costs of a
+    // tier 3 OpenComputers GPU.
+    @ComponentMethod
+    public void get(Number x, Number y, ReturnSink sink) {
         int xi = x.intValue();
         int yi = y.intValue();
 
         if (xi >= 1 && yi >= 1 && xi <= renderer.getWidth() && yi <= renderer.getHeight()) {
             int chr = renderer.getChar(xi - 1, yi - 1);
-            String s = new StringBuilder().appendCodePoint(chr).toString();
-            int[] bgColor = getOldColorReturn(renderer.getBG(xi - 1, yi - 1));
-            int[] fgColor = getOldColorReturn(renderer.getFG(xi - 1, yi - 1));
-
-            if (bgColor.length == 2 && fgColor.length == 2) {
-                return new Object[] { s, fgColor[0], bgColor[0], fgColor[1], bgColor[1] };
-            } else {
-                return new Object[] { s, fgColor[0], bgColor[0] };
-            }
+            int bg = renderer.getBG(xi - 1, yi - 1);
+            int fg = renderer.getFG(xi - 1, yi - 1);
+
+            sink.pushString(new StringBuilder().appendCodePoint(chr).toString());
+            sink.pushInteger(renderer.getPaletteColor(fg));
+            sink.pushInteger(renderer.getPaletteColor(bg));
+            sink.pushInteger(fg);
+            sink.pushInteger(bg);
         } else {
-            return new Object[] { " ", 0, 0, 0, 0 };
+            sink.pushString(" ");
+            sink.pushInteger(0);
+            sink.pushInteger(0);
+            sink.pushInteger(0);
+            sink.pushInteger(0);
         }
     }
 
-    @ComponentMethod
+    @ComponentMethod(limit = 128)
     public boolean fill(Number x, Number y, Number width, Number height, String c) {
         if (c.length() >= 1) {
             int codePoint = c.codePointAt(0);
@@ -283,7 +298,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
         }
     }
 
-    @ComponentMethod
+    @ComponentMethod(limit = 64)
     public boolean copy(Number x, Number y, Number width, Number height, Number tx, Number ty) {
         if (tx.intValue() == 0 && ty.intValue() == 0) {
             return true;
@@ -294,7 +309,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
     }
 
     @SuppressWarnings("OptionalUsedAsFieldOrParameterType")
-    @ComponentMethod
+    @ComponentMethod(limit = 256)
     public boolean set(Number x, Number y, String value, Optional<Boolean> vertical) {
 		int maxLen = vertical.orElse(false) ? (maxHeight - (y.intValue() - 1)) : (maxWidth - (x.intValue() - 1));
 		apply(new OCGPUCommand.Set(bgColor, fgColor, x.intValue(), y.intValue(), vertical.orElse(false), value.length() > maxLen ? value.substring(0, maxLen) : value));
@@ -332,6 +347,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
 		}
 
 		commands.clear();
+		machine.getMetrics().recordSyncBytes(dataStream.size());
 		dataStream.close();
 	}
 
@@ -361,7 +377,7 @@ public class PeripheralOCGPU implements Synchronizable, Peripheral, Persistable
             throw new PersistenceException("Version too new!");
         }
         if (stream.readBoolean()) {
-            bind(stream.readUTF());
+            bind(machine.getUnpersistedAddress(stream.readUTF()));
         }
         bgColor = stream.readInt();
         fgColor = stream.readInt();
@@ -38,6 +38,12 @@ public class PeripheralOCKeyboard implements Peripheral {
     public PeripheralOCKeyboard(MachineOpenComputers machine, KeyboardInputProvider provider) {
         this.machine = machine;
         this.provider = provider;
+
+        // Providers which can notify us of new keys let the machine sleep
+        // until one arrives; the others have to be polled every tick.
+        if (provider.setKeyListener(machine::wakeUp)) {
+            machine.setSelfWaking(this);
+        }
     }
 
     @ComponentEventListener
@@ -16,7 +16,6 @@
 
 package org.terasology.kallisti.oc;
 
-import org.terasology.kallisti.base.component.ComponentContext;
 import org.terasology.kallisti.base.component.ComponentMethod;
 import org.terasology.kallisti.base.component.Peripheral;
 import org.terasology.jnlua.LuaState;
@@ -57,15 +56,14 @@ public class ShimComponent extends ShimInvoker<Object> {
 		boolean exact = oexact.orElse(!filter.isPresent());
 		LuaState state = machine.getLuaState();
 		state.newTable();
-		for (ComponentContext ctx : machine.getContextsByClass(Peripheral.class)) {
-			Object value = machine.getComponent(ctx, Peripheral.class);
+		machine.forEachComponent(Peripheral.class, (ctx, value) -> {
 			String type = machine.getComponentType(value);
 
 			if (!filter.isPresent() || filter.get().length() == 0 || (exact && filter.get().equals(type)) || (!exact && type.contains(filter.get()))) {
 				state.pushString(type);
-				state.setField(-2, machine.getComponentAddress(value));
+				state.setField(-2, machine.getComponentAddress(ctx));
 			}
-		}
+		});
 
 		LuaValueProxy proxy = state.getProxy(-1);
 		state.pop(1);
@@ -48,12 +48,12 @@ public class ShimComputer {
 
 	@ComponentMethod
 	public int freeMemory() {
-		return Math.round(machine.getLuaState().getFreeMemory() / machine.getMemorySizeMultiplier());
+		return machine.getFreeMemory();
 	}
 
 	@ComponentMethod
 	public int totalMemory() {
-		return Math.round(machine.getLuaState().getTotalMemory() / machine.getMemorySizeMultiplier());
+		return machine.getTotalMemory();
 	}
 
 	@ComponentMethod
@@ -103,10 +103,8 @@ public class ShimComputer {
 	}
 
 	@ComponentMethod
-	public void pushSignal(Object... args) {
-		if (args.length >= 1 && args[0] instanceof String) {
-			machine.pushSignal(args);
-		}
+	public boolean pushSignal(Object... args) {
+		return args.length >= 1 && args[0] instanceof String && machine.pushSignal(args);
 	}
 
 	@ComponentMethod
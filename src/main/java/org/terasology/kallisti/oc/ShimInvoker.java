@@ -17,19 +17,21 @@
 package org.terasology.kallisti.oc;
 
 import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
 import org.terasology.jnlua.LuaState;
 import org.terasology.jnlua.LuaValueProxy;
-import org.terasology.kallisti.base.util.KallistiArgUtils;
 
-import java.lang.reflect.Array;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.lang.reflect.ParameterizedType;
-import java.util.Arrays;
-import java.util.Optional;
+import java.util.HashMap;
+import java.util.Map;
 
 public abstract class ShimInvoker<V> {
+    private static final String COPY_METHOD_TABLE = "local pairs = pairs\n"
+            + "return function(t) local r = {} for k, v in pairs(t) do r[k] = {direct = v.direct} end return r end";
+
     protected final MachineOpenComputers machine;
+    // Template tables of component.methods(), per class.
+    private final Map<Class, LuaValueProxy> methodTemplates = new HashMap<>();
+    private LuaValueProxy copyMethodTable;
 
     public ShimInvoker(MachineOpenComputers machine) {
         this.machine = machine;
@@ -37,75 +39,38 @@ public abstract class ShimInvoker<V> {
 
     protected abstract V get(Object value);
 
-    @ComponentMethod(returnsMultipleArguments = true)
-    public Object[] invoke(Object key, String name, Object... args) {
+    @ComponentMethod
+    public void invoke(Object key, String name, ReturnSink sink, Object... args) {
         V p = get(key);
         if (p == null) {
-            return null;
+            return;
         }
 
-        Optional<Method> om = KallistiArgUtils.findClosestMethod(args.length,
-                Arrays.stream(p.getClass().getMethods()).filter(
-                        (m) -> {
-                            ComponentMethod pm;
-                            if ((pm = m.getAnnotation(ComponentMethod.class)) != null) {
-                                String methodName = pm.name();
-                                if (methodName.isEmpty()) {
-                                    methodName = m.getName();
-                                }
-
-                                return methodName.equals(name);
-                            } else {
-                                return false;
-                            }
-                        }
-                ), true);
-
-        if (!om.isPresent()) {
-            return new Object[] { false, "could not find method " + name };
+        OCMethodTable.Invoker invoker = OCMethodTable.get(p.getClass()).find(name, args.length);
+        if (invoker == null) {
+            sink.pushBoolean(false);
+            sink.pushString("could not find method " + name);
+            return;
         }
 
-        Method m = om.get();
-        ComponentMethod pm = m.getAnnotation(ComponentMethod.class);
-        Object o;
-        Object[] realArgs = new Object[m.getParameterCount()];
-        for (int i = 0; i < m.getParameterCount(); i++) {
-            Class c = m.getParameterTypes()[i];
-            if (i >= args.length) {
-                realArgs[i] = KallistiArgUtils.getNullObjectFor(c);
-            } else {
-                realArgs[i] = KallistiArgUtils.getObjectFor(c, args[i]);
-            }
+        if ((invoker.getAnnotation().synchronize() && !machine.isSynchronizedContext())
+                || !machine.consumeCallBudget(invoker.getCost())) {
+            // No results make machine.lua yield the call to the machine's
+            // owning thread, where it is made on the next tick.
+            return;
         }
 
-        try {
-            o = m.invoke(p, realArgs);
-        } catch (InvocationTargetException e) {
-            return new Object[] { false, e.getTargetException().getMessage() };
-        } catch (IllegalAccessException e) {
-            return new Object[] { false, e.getMessage() };
-        }
+        machine.getMetrics().recordComponentCall();
 
-        Object[] returns = null;
-        if (pm.returnsMultipleArguments()) {
-            if (o.getClass().isArray()) {
-                returns = new Object[Array.getLength(o) + 1];
-                for (int i = 0; i < returns.length - 1; i++) {
-                    returns[i + 1] = Array.get(o, i);
-                }
-            }
-        }
-
-        if (returns == null) {
-            if (m.getReturnType() == Void.TYPE) {
-                returns = new Object[1];
-            } else {
-                returns = new Object[2];
-                returns[1] = o;
-            }
+        LuaState state = machine.getLuaState();
+        int top = state.getTop();
+        sink.pushBoolean(true);
+        Throwable t = invoker.invoke(p, args, sink);
+        if (t != null) {
+            state.setTop(top);
+            sink.pushBoolean(false);
+            sink.pushString(t.getMessage());
         }
-        returns[0] = true;
-        return returns;
     }
 
     @ComponentMethod(returnsMultipleArguments = true)
@@ -115,17 +80,34 @@ public abstract class ShimInvoker<V> {
             return null;
         }
 
+        // Copy the class's prebuilt template table, so that Lua code can
+        // modify the result freely.
+        LuaState state = machine.getLuaState();
+        if (copyMethodTable == null) {
+            state.load(COPY_METHOD_TABLE, "=copyMethodTable");
+            state.call(0, 1);
+            copyMethodTable = state.getProxy(-1);
+            state.pop(1);
+        }
+
+        copyMethodTable.pushValue();
+        methodTemplates.computeIfAbsent(p.getClass(), this::createMethodTemplate).pushValue();
+        state.call(1, 1);
+
+        LuaValueProxy proxy = state.getProxy(-1);
+        state.pop(1);
+        return proxy;
+    }
+
+    private LuaValueProxy createMethodTemplate(Class c) {
         LuaState state = machine.getLuaState();
         state.newTable();
-        for (Method m : p.getClass().getMethods()) {
-            ComponentMethod pm;
-            if ((pm = m.getAnnotation(ComponentMethod.class)) != null) {
-                state.newTable();
-                state.pushBoolean(!pm.synchronize());
-                state.setField(-2, "direct");
-
-                state.setField(-2, pm.name().isEmpty() ? m.getName() : pm.name());
-            }
+        for (Map.Entry<String, Boolean> entry : OCMethodTable.get(c).getDirectFlags().entrySet()) {
+            state.newTable();
+            state.pushBoolean(entry.getValue());
+            state.setField(-2, "direct");
+
+            state.setField(-2, entry.getKey());
         }
 
         LuaValueProxy proxy = state.getProxy(-1);
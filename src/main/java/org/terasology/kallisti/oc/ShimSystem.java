@@ -27,7 +27,7 @@ public class ShimSystem {
 
 	@ComponentMethod
 	public double timeout() {
-		return 1.0; // TODO
+		return machine.getTimeout();
 	}
 
 	@ComponentMethod
@@ -28,6 +28,7 @@ import org.terasology.kallisti.oc.PeripheralOCGPU;
 
 import java.io.*;
 import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
     public static void main(String[] args) throws Exception {
@@ -50,6 +51,18 @@ public class Main {
                 machine = machine.setTimeout(json.get("timeout").getAsDouble());
             }
 
+            if (json.has("tickCpuBudget")) {
+                machine = machine.setTickCpuBudget(json.get("tickCpuBudget").getAsDouble());
+            }
+
+            if (json.has("callBudget")) {
+                machine = machine.setCallBudget(json.get("callBudget").getAsDouble());
+            }
+
+            if (json.has("offThread") && json.get("offThread").getAsBoolean()) {
+                machine = machine.setExecutor(ForkJoinPool.commonPool());
+            }
+
             return machine;
         });
 
@@ -66,11 +66,13 @@ public class Simulator {
 
         // Phase 4: Create machine
         machine = (Machine) objects.get(machineContext);
+        Map<ComponentContext, Object> machineComponents = new HashMap<>();
         for (Map.Entry<ComponentContext, Object> entry : objects.entrySet()) {
             if (!(entry.getValue() instanceof Machine)) {
-                machine.addComponent(entry.getKey(), entry.getValue());
+                machineComponents.put(entry.getKey(), entry.getValue());
             }
         }
+        machine.addComponents(machineComponents);
         machine.initialize();
     }
 
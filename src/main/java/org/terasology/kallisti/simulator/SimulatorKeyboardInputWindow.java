@@ -21,11 +21,13 @@ import org.terasology.kallisti.base.interfaces.KeyboardInputProvider;
 import javax.swing.*;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
-import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class SimulatorKeyboardInputWindow implements KeyboardInputProvider, KeyListener {
-    protected final LinkedList<Key> keys = new LinkedList<>();
+    protected final Queue<Key> keys = new ConcurrentLinkedQueue<>();
     private final JFrame window;
+    private volatile Runnable keyListener;
 
     public SimulatorKeyboardInputWindow(String windowName) {
         window = new JFrame(windowName);
@@ -41,16 +43,24 @@ public class SimulatorKeyboardInputWindow implements KeyboardInputProvider, KeyL
 
     @Override
     public void keyPressed(KeyEvent keyEvent) {
-        keys.add(new KeyboardInputProvider.Key(KeyboardInputProvider.KeyType.PRESSED,
+        addKey(new KeyboardInputProvider.Key(KeyboardInputProvider.KeyType.PRESSED,
                 keyEvent.getKeyCode(), getKeyChar(keyEvent)));
     }
 
     @Override
     public void keyReleased(KeyEvent keyEvent) {
-        keys.add(new KeyboardInputProvider.Key(KeyboardInputProvider.KeyType.RELEASED,
+        addKey(new KeyboardInputProvider.Key(KeyboardInputProvider.KeyType.RELEASED,
                 keyEvent.getKeyCode(), getKeyChar(keyEvent)));
     }
 
+    private void addKey(Key key) {
+        keys.add(key);
+        Runnable listener = keyListener;
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
     private int getKeyChar(KeyEvent keyEvent) {
         int k = (int) keyEvent.getKeyChar();
         return k == 65535 ? -1 : k;
@@ -63,6 +73,12 @@ public class SimulatorKeyboardInputWindow implements KeyboardInputProvider, KeyL
 
     @Override
     public Key nextKey() {
-        return keys.removeFirst();
+        return keys.remove();
+    }
+
+    @Override
+    public boolean setKeyListener(Runnable listener) {
+        this.keyListener = listener;
+        return true;
     }
 }
@@ -0,0 +1,490 @@
+package org.terasology.kallisti.base.component;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+public class TestMachine {
+    public static class Context implements ComponentContext {
+        private final String id;
+
+        public Context(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String identifier() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Context && ((Context) other).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    public static class TestMachineImpl extends Machine {
+        private int ticks;
+
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            ticks++;
+            return true;
+        }
+    }
+
+    @ComponentInterface
+    public interface Source {
+
+    }
+
+    @ComponentInterface
+    public interface Extra {
+
+    }
+
+    public static class SourceImpl implements Source {
+
+    }
+
+    public static class ExtraImpl implements Extra {
+
+    }
+
+    @ComponentInterface
+    public static class Derived {
+        private static int created;
+
+        private final Source source;
+        private final Optional<Extra> extra;
+
+        @ComponentRule
+        public Derived(TestMachineImpl machine, Source source, Optional<Extra> extra) {
+            this.source = source;
+            this.extra = extra;
+            created++;
+        }
+    }
+
+    @ComponentInterface
+    public static class DerivedTwice {
+        @ComponentRule
+        public DerivedTwice(Derived derived) {
+
+        }
+    }
+
+    @ComponentInterface
+    public static class Pair {
+        @ComponentRule
+        public Pair(Source source, Extra extra) {
+
+        }
+    }
+
+    @ComponentRule
+    public static Context joinContexts(Context... contexts) {
+        StringBuilder builder = new StringBuilder();
+        for (Context c : contexts) {
+            builder.append(builder.length() > 0 ? "+" : "").append(c.identifier());
+        }
+        return new Context(builder.toString());
+    }
+
+    @Test
+    public void derivedComponents() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+        machine.registerRules(DerivedTwice.class);
+
+        Context a = new Context("a");
+        Context b = new Context("b");
+        Assert.assertTrue(machine.addComponent(a, new SourceImpl()));
+        Assert.assertTrue(machine.addComponent(b, new SourceImpl()));
+        Assert.assertFalse(machine.addComponent(b, new SourceImpl()));
+
+        Assert.assertNotNull(machine.getComponent(a, Derived.class));
+        Assert.assertNotNull(machine.getComponent(b, Derived.class));
+        Assert.assertNotNull(machine.getComponent(a, DerivedTwice.class));
+        Assert.assertNotNull(machine.getComponent(b, DerivedTwice.class));
+        Assert.assertEquals(2, machine.getComponentsByClass(Derived.class).size());
+        Assert.assertFalse(machine.getComponent(a, Derived.class).extra.isPresent());
+    }
+
+    @Test
+    public void rulesRegisteredLate() {
+        TestMachineImpl machine = new TestMachineImpl();
+        Context a = new Context("a");
+        machine.addComponent(a, new SourceImpl());
+        Assert.assertNull(machine.getComponent(a, Derived.class));
+
+        machine.registerRules(Derived.class);
+        machine.addComponent(new Context("b"), new SourceImpl());
+        Assert.assertNotNull(machine.getComponent(a, Derived.class));
+        Assert.assertNotNull(machine.getComponent(new Context("b"), Derived.class));
+    }
+
+    @Test
+    public void permutationsEvaluatedOnce() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+
+        Derived.created = 0;
+        for (int i = 0; i < 20; i++) {
+            machine.addComponent(new Context("s" + i), new SourceImpl());
+        }
+        Assert.assertEquals(20, Derived.created);
+    }
+
+    @Test
+    public void optionalInputs() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+
+        Context a = new Context("a");
+        Derived.created = 0;
+        machine.addComponent(a, new SourceImpl());
+        machine.addComponent(a, new ExtraImpl());
+        Assert.assertEquals(2, Derived.created);
+        Assert.assertEquals(1, machine.getComponentsByClass(Derived.class).size());
+        Assert.assertFalse(machine.getComponent(a, Derived.class).extra.isPresent());
+    }
+
+    @Test
+    public void addComponentsInBulk() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+        machine.registerRules(DerivedTwice.class);
+
+        Map<ComponentContext, Object> components = new HashMap<>();
+        for (int i = 0; i < 50; i++) {
+            components.put(new Context("s" + i), new SourceImpl());
+        }
+
+        Derived.created = 0;
+        Assert.assertTrue(machine.addComponents(components));
+        Assert.assertEquals(50, Derived.created);
+        Assert.assertEquals(50, machine.getComponentsByClass(DerivedTwice.class).size());
+
+        components.clear();
+        components.put(new Context("s0"), new SourceImpl());
+        Assert.assertFalse(machine.addComponents(components));
+    }
+
+    @Test
+    public void linkingRules() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(TestMachine.class);
+        machine.registerRules(Pair.class);
+
+        machine.addComponent(new Context("a"), new SourceImpl());
+        machine.addComponent(new Context("b"), new ExtraImpl());
+        Assert.assertNotNull(machine.getComponent(new Context("a+b"), Pair.class));
+        Assert.assertEquals(new Context("a+b"), machine.join(new Context("a"), new Context("b")));
+        Assert.assertEquals(new Context("a"), machine.join(new Context("a")));
+    }
+
+    @Test
+    public void removalCascadesToDerived() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(TestMachine.class);
+        machine.registerRules(Pair.class);
+        machine.registerRules(Derived.class);
+        machine.registerRules(DerivedTwice.class);
+
+        machine.addComponent(new Context("a"), new SourceImpl());
+        machine.addComponent(new Context("b"), new ExtraImpl());
+        Assert.assertNotNull(machine.getComponent(new Context("a+b"), Pair.class));
+        Assert.assertNotNull(machine.getComponent(new Context("a"), DerivedTwice.class));
+
+        Assert.assertTrue(machine.removeComponent(new Context("b")));
+        Assert.assertFalse(machine.removeComponent(new Context("b")));
+        Assert.assertNull(machine.getComponent(new Context("a+b"), Pair.class));
+        Assert.assertNotNull(machine.getComponent(new Context("a"), DerivedTwice.class));
+
+        Source source = machine.getComponent(new Context("a"), Source.class);
+        Assert.assertTrue(machine.removeComponent(new Context("a")));
+        Assert.assertNull(machine.getContext(source));
+        Assert.assertEquals(0, machine.getComponentsByClass(Derived.class).size());
+        Assert.assertEquals(0, machine.getComponentsByClass(DerivedTwice.class).size());
+
+        Assert.assertTrue(machine.addComponent(new Context("a"), new SourceImpl()));
+        Assert.assertNotNull(machine.getComponent(new Context("a"), DerivedTwice.class));
+    }
+
+    @Test
+    public void componentSnapshots() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.addComponent(new Context("a"), new SourceImpl());
+
+        Collection<Source> sources = machine.getComponentsByClass(Source.class);
+        int version = machine.getComponentVersion();
+        Assert.assertSame(sources, machine.getComponentsByClass(Source.class));
+        Assert.assertEquals(1, sources.size());
+
+        machine.addComponent(new Context("b"), new SourceImpl());
+        Assert.assertTrue(version != machine.getComponentVersion());
+        Assert.assertEquals(1, sources.size());
+        Assert.assertEquals(2, machine.getComponentsByClass(Source.class).size());
+
+        List<ComponentContext> contexts = new ArrayList<>();
+        machine.forEachComponent(Source.class, (ctx, source) -> {
+            contexts.add(ctx);
+            machine.removeComponent(ctx);
+        });
+        Assert.assertEquals(2, contexts.size());
+        Assert.assertTrue(machine.getComponentsByClass(Source.class).isEmpty());
+    }
+
+    @ComponentInterface
+    public interface Ticking {
+
+    }
+
+    public static class TickingImpl implements Ticking {
+        private int ticks;
+
+        @ComponentEventListener
+        public void onTick(ComponentTickEvent event) {
+            ticks++;
+        }
+    }
+
+    @ComponentInterface
+    public static class DerivedTicking {
+        private final Ticking parent;
+
+        @ComponentRule
+        public DerivedTicking(Ticking parent) {
+            this.parent = parent;
+        }
+    }
+
+    @Test
+    public void removedListenersUnregistered() throws Exception {
+        TestMachineImpl machine = new TestMachineImpl();
+        TickingImpl kept = new TickingImpl();
+        TickingImpl removed = new TickingImpl();
+        machine.addComponent(new Context("kept"), kept);
+        machine.addComponent(new Context("removed"), removed);
+        machine.initialize();
+        machine.start();
+
+        machine.tick(0.05);
+        machine.removeComponent(new Context("removed"));
+        machine.tick(0.05);
+        Assert.assertEquals(2, kept.ticks);
+        Assert.assertEquals(1, removed.ticks);
+    }
+
+    public static class DeferringMachineImpl extends TestMachineImpl {
+        private boolean defer;
+
+        @Override
+        protected boolean deferTickEvents() {
+            return defer;
+        }
+    }
+
+    public static class TickTimeListener {
+        private final List<Double> times = new ArrayList<>();
+
+        @ComponentEventListener
+        public void onTick(ComponentTickEvent event) {
+            times.add(event.getTickTime());
+        }
+    }
+
+    @Test
+    public void deferredTickEventsCarryTime() throws Exception {
+        DeferringMachineImpl machine = new DeferringMachineImpl();
+        TickTimeListener listener = new TickTimeListener();
+        machine.addComponent(new Context("listener"), listener);
+        machine.initialize();
+        machine.start();
+
+        machine.tick(0.05);
+        machine.defer = true;
+        machine.tick(0.05);
+        machine.tick(0.1);
+        Assert.assertEquals(1, listener.times.size());
+        Assert.assertEquals(3, ((TestMachineImpl) machine).ticks);
+
+        machine.defer = false;
+        machine.tick(0.05);
+        machine.tick(0.05);
+        Assert.assertEquals(Arrays.asList(0.05, 0.2, 0.05), listener.times);
+    }
+
+    public static class LifecycleListener {
+        private final List<Object> added = new ArrayList<>();
+        private final List<Object> removed = new ArrayList<>();
+
+        @ComponentEventListener
+        public void onAdded(ComponentAddedEvent event) {
+            added.add(event.getComponent());
+        }
+
+        @ComponentEventListener
+        public void onRemoved(ComponentRemovedEvent event) {
+            removed.add(event.getComponent());
+        }
+    }
+
+    @Test
+    public void lifecycleEvents() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+        LifecycleListener listener = new LifecycleListener();
+        machine.addComponent(new Context("listener"), listener);
+
+        SourceImpl source = new SourceImpl();
+        machine.addComponent(new Context("a"), source);
+        Derived derived = machine.getComponent(new Context("a"), Derived.class);
+        Assert.assertEquals(Arrays.asList(listener, source, derived), listener.added);
+
+        machine.removeComponent(new Context("a"));
+        Assert.assertEquals(Arrays.asList(source, derived), listener.removed);
+    }
+
+    public static class DerivedCheckingListener {
+        private final TestMachineImpl machine;
+        private final List<Object> added = new ArrayList<>();
+        private int missingDerived;
+
+        public DerivedCheckingListener(TestMachineImpl machine) {
+            this.machine = machine;
+        }
+
+        @ComponentEventListener
+        public void onAdded(ComponentAddedEvent event) {
+            added.add(event.getComponent());
+            if (event.getComponent() instanceof Source
+                    && machine.getComponent(event.getContext(), DerivedTwice.class) == null) {
+                missingDerived++;
+            }
+        }
+    }
+
+    @Test
+    public void lifecycleEventsFollowDerivation() {
+        TestMachineImpl machine = new TestMachineImpl();
+        machine.registerRules(Derived.class);
+        machine.registerRules(DerivedTwice.class);
+        DerivedCheckingListener listener = new DerivedCheckingListener(machine);
+        machine.addComponent(new Context("listener"), listener);
+
+        Map<ComponentContext, Object> components = new LinkedHashMap<>();
+        SourceImpl a = new SourceImpl();
+        SourceImpl b = new SourceImpl();
+        components.put(new Context("a"), a);
+        components.put(new Context("b"), b);
+        machine.addComponents(components);
+
+        Assert.assertEquals(Arrays.asList(
+                listener, a, b,
+                machine.getComponent(new Context("a"), Derived.class),
+                machine.getComponent(new Context("b"), Derived.class),
+                machine.getComponent(new Context("a"), DerivedTwice.class),
+                machine.getComponent(new Context("b"), DerivedTwice.class)), listener.added);
+        Assert.assertEquals(0, listener.missingDerived);
+    }
+
+    public static class FailingListener {
+        private int events;
+
+        @ComponentEventListener
+        public void onEvent(ComponentEvent event) {
+            events++;
+            throw new RuntimeException("listener failure");
+        }
+    }
+
+    @Test
+    public void supertypeListeners() throws Exception {
+        TestMachineImpl machine = new TestMachineImpl();
+        FailingListener listener = new FailingListener();
+        TickingImpl ticking = new TickingImpl();
+        machine.addComponent(new Context("listener"), listener);
+        machine.addComponent(new Context("ticking"), ticking);
+        machine.initialize();
+        machine.start();
+
+        int events = listener.events;
+        machine.tick(0.05);
+        Assert.assertEquals(events + 1, listener.events);
+        Assert.assertEquals(1, ticking.ticks);
+        Assert.assertEquals(listener.events, machine.eventHandler.getFailureCount());
+
+        machine.removeComponent(new Context("listener"));
+        machine.tick(0.05);
+        Assert.assertEquals(events + 1, listener.events);
+        Assert.assertEquals(2, ticking.ticks);
+    }
+
+    @Test
+    public void concurrentMachines() throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(8);
+        AtomicInteger failures = new AtomicInteger();
+
+        try {
+            pool.submit(() -> IntStream.range(0, 1000).parallel().forEach((i) -> {
+                try {
+                    TestMachineImpl machine = new TestMachineImpl();
+                    machine.registerRules(DerivedTicking.class);
+                    Map<ComponentContext, Object> components = new HashMap<>();
+                    for (int j = 0; j < 10; j++) {
+                        components.put(new Context("t" + j), new TickingImpl());
+                    }
+                    machine.addComponents(components);
+                    machine.initialize();
+                    machine.start();
+                    for (int j = 0; j < 20; j++) {
+                        machine.tick(0.05);
+                    }
+
+                    boolean valid = machine.ticks == 20
+                            && machine.getComponentsByClass(DerivedTicking.class).size() == 10;
+                    for (Ticking t : machine.getComponentsByClass(Ticking.class)) {
+                        valid &= ((TickingImpl) t).ticks == 20;
+                    }
+                    if (!valid) {
+                        failures.incrementAndGet();
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                }
+            })).get();
+        } finally {
+            pool.shutdown();
+        }
+
+        Assert.assertEquals(0, failures.get());
+    }
+}
@@ -0,0 +1,309 @@
+package org.terasology.kallisti.base.component;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestMachineScheduler {
+    public static class CountingMachine extends Machine {
+        private final AtomicBoolean ticking = new AtomicBoolean();
+        private final AtomicInteger overlaps;
+        private final int lifetime;
+        private int ticks;
+
+        public CountingMachine(AtomicInteger overlaps, int lifetime) {
+            this.overlaps = overlaps;
+            this.lifetime = lifetime;
+        }
+
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            if (!ticking.compareAndSet(false, true)) {
+                overlaps.incrementAndGet();
+            }
+            ticks++;
+            ticking.set(false);
+            return ticks < lifetime;
+        }
+    }
+
+    @Test
+    public void ticksAllMachines() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(4, 0.05);
+        AtomicInteger overlaps = new AtomicInteger();
+        List<CountingMachine> machines = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 500; i++) {
+                CountingMachine machine = new CountingMachine(overlaps, i < 100 ? 5 : Integer.MAX_VALUE);
+                machine.initialize();
+                machine.start();
+                machines.add(machine);
+                scheduler.add(machine);
+            }
+
+            for (int i = 0; i < 10; i++) {
+                scheduler.tick();
+            }
+
+            Assert.assertEquals(400, scheduler.getMachineCount());
+            for (int i = 0; i < machines.size(); i++) {
+                Assert.assertEquals(i < 100 ? 5 : 10, machines.get(i).ticks);
+            }
+
+            scheduler.remove(machines.get(200));
+            scheduler.tick();
+            Assert.assertEquals(399, scheduler.getMachineCount());
+            Assert.assertEquals(10, machines.get(200).ticks);
+            Assert.assertEquals(0, overlaps.get());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    public static class SleepingMachine extends Machine {
+        private double sleep, elapsed;
+        private int ticks, idleWork;
+
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            ticks++;
+            elapsed += time;
+            return true;
+        }
+
+        @Override
+        public double getWakeupDelay() {
+            return sleep;
+        }
+
+        @Override
+        public boolean idle(long deadlineNanos) {
+            return --idleWork > 0;
+        }
+    }
+
+    @Test
+    public void parksSleepingMachines() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(2, 0.05);
+
+        try {
+            SleepingMachine sleeper = new SleepingMachine();
+            SleepingMachine forever = new SleepingMachine();
+            sleeper.sleep = 0.5;
+            forever.sleep = Double.POSITIVE_INFINITY;
+            for (SleepingMachine machine : new SleepingMachine[] { sleeper, forever }) {
+                machine.initialize();
+                machine.start();
+                scheduler.add(machine);
+            }
+
+            scheduler.tick();
+            Assert.assertEquals(2, scheduler.getParkedMachineCount());
+            for (int i = 0; i < 9; i++) {
+                scheduler.tick();
+            }
+            Assert.assertEquals(1, sleeper.ticks);
+
+            scheduler.tick();
+            Assert.assertEquals(2, sleeper.ticks);
+            Assert.assertEquals(0.55, sleeper.elapsed, 1e-9);
+            Assert.assertEquals(1, forever.ticks);
+
+            forever.sleep = 0;
+            forever.wakeUp();
+            scheduler.tick();
+            scheduler.tick();
+            Assert.assertEquals(3, forever.ticks);
+            Assert.assertEquals(0.65, forever.elapsed, 1e-9);
+            Assert.assertEquals(2, scheduler.getMachineCount());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void idlesParkedMachines() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(1, 0.05);
+
+        try {
+            scheduler.setIdleBudget(1, TimeUnit.SECONDS);
+            SleepingMachine sleeper = new SleepingMachine();
+            sleeper.sleep = Double.POSITIVE_INFINITY;
+            sleeper.idleWork = 3;
+            sleeper.initialize();
+            sleeper.start();
+            scheduler.add(sleeper);
+
+            scheduler.tick();
+            Assert.assertEquals(3, sleeper.idleWork);
+            scheduler.tick();
+            Assert.assertEquals(0, sleeper.idleWork);
+            scheduler.tick();
+            Assert.assertEquals(0, sleeper.idleWork);
+            Assert.assertEquals(1, sleeper.ticks);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void reportsOverruns() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(2, 0.05);
+        AtomicInteger reported = new AtomicInteger();
+
+        try {
+            scheduler.setMachineBudget(0, TimeUnit.NANOSECONDS);
+            scheduler.setOverrunListener((machine, elapsed) -> reported.incrementAndGet());
+
+            CountingMachine machine = new CountingMachine(new AtomicInteger(), Integer.MAX_VALUE);
+            machine.initialize();
+            machine.start();
+            scheduler.add(machine);
+            scheduler.tick();
+            scheduler.tick();
+
+            Assert.assertEquals(2, reported.get());
+            Assert.assertEquals(2, scheduler.getOverrunMachineTicks());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void reportsErrors() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(2, 0.05);
+        List<Exception> reported = new ArrayList<>();
+
+        try {
+            scheduler.setErrorListener((machine, e) -> {
+                synchronized (reported) {
+                    reported.add(e);
+                }
+            });
+
+            Machine machine = new CountingMachine(new AtomicInteger(), Integer.MAX_VALUE) {
+                @Override
+                protected boolean tickInternal(double time) {
+                    throw new IllegalStateException("tick failed");
+                }
+            };
+            machine.initialize();
+            machine.start();
+            scheduler.add(machine);
+            scheduler.tick();
+            scheduler.tick();
+
+            Assert.assertEquals(1, reported.size());
+            Assert.assertEquals("tick failed", reported.get(0).getMessage());
+            Assert.assertEquals(0, scheduler.getMachineCount());
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    @Test
+    public void rethrowsErrorsWithoutListener() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(2, 0.05);
+
+        try {
+            Machine machine = new CountingMachine(new AtomicInteger(), Integer.MAX_VALUE) {
+                @Override
+                protected boolean tickInternal(double time) {
+                    throw new IllegalStateException("tick failed");
+                }
+            };
+            machine.initialize();
+            machine.start();
+            scheduler.add(machine);
+
+            try {
+                scheduler.tick();
+                Assert.fail("Expected the tick to fail");
+            } catch (IllegalStateException e) {
+                Assert.assertEquals("tick failed", e.getMessage());
+            }
+            Assert.assertEquals(0, scheduler.getMachineCount());
+            scheduler.tick();
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    public static class ThreadRecordingMachine extends Machine {
+        private final Set<Thread> threads = new HashSet<>();
+
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            threads.add(Thread.currentThread());
+            return true;
+        }
+    }
+
+    @Test
+    public void pinsMachinesToWorkers() throws Exception {
+        MachineScheduler scheduler = new MachineScheduler(4, 0.05);
+        List<ThreadRecordingMachine> machines = new ArrayList<>();
+
+        try {
+            scheduler.setWorkStealing(false);
+            for (int i = 0; i < 100; i++) {
+                ThreadRecordingMachine machine = new ThreadRecordingMachine();
+                machine.initialize();
+                machine.start();
+                machines.add(machine);
+                scheduler.add(machine);
+            }
+
+            for (int i = 0; i < 20; i++) {
+                scheduler.tick();
+            }
+
+            Set<Thread> allThreads = new HashSet<>();
+            for (ThreadRecordingMachine machine : machines) {
+                Assert.assertEquals(1, machine.threads.size());
+                allThreads.addAll(machine.threads);
+            }
+            Assert.assertEquals(4, allThreads.size());
+        } finally {
+            scheduler.close();
+        }
+    }
+}
@@ -20,6 +20,10 @@ public class TestKallistiReflect {
 
     }
 
+    public class D extends A implements B {
+
+    }
+
     @Test
     public void classesListing() {
         Iterable<Class> c = KallistiReflect.classes(A.class);
@@ -33,4 +37,14 @@ public class TestKallistiReflect {
         expected.add(Object.class);
         Assert.assertEquals(expected, actual);
     }
+
+    @Test
+    public void hierarchyDeduplicated() {
+        Class[] hierarchy = KallistiReflect.hierarchy(D.class);
+        Assert.assertEquals(6, hierarchy.length);
+        Assert.assertEquals(D.class, hierarchy[0]);
+        Assert.assertEquals(A.class, hierarchy[1]);
+        Assert.assertEquals(B.class, hierarchy[2]);
+        Assert.assertSame(hierarchy, KallistiReflect.hierarchy(D.class));
+    }
 }
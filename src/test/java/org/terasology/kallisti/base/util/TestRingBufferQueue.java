@@ -0,0 +1,69 @@
+package org.terasology.kallisti.base.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+public class TestRingBufferQueue {
+    @Test
+    public void rejectWhenFull() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(4, RingBufferQueue.OverflowPolicy.REJECT);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertFalse(queue.offer(4));
+        Assert.assertEquals(1, queue.getDroppedCount());
+        Assert.assertEquals(0, (int) queue.poll());
+        Assert.assertTrue(queue.offer(5));
+        Assert.assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void dropOldestWhenFull() {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(3, RingBufferQueue.OverflowPolicy.DROP_OLDEST);
+        Assert.assertEquals(4, queue.capacity());
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(queue.offer(i));
+        }
+        Assert.assertEquals(2, queue.getDroppedCount());
+        for (int i = 2; i < 6; i++) {
+            Assert.assertEquals(i, (int) queue.poll());
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void concurrentProducers() throws Exception {
+        RingBufferQueue<Integer> queue = new RingBufferQueue<>(256, RingBufferQueue.OverflowPolicy.REJECT);
+        int producers = 4;
+        int perProducer = 10000;
+        CountDownLatch done = new CountDownLatch(producers);
+        Set<Integer> received = new HashSet<>();
+
+        for (int p = 0; p < producers; p++) {
+            int base = p * perProducer;
+            new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    while (!queue.offer(base + i)) {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        while (received.size() < producers * perProducer) {
+            Integer value = queue.poll();
+            if (value != null) {
+                Assert.assertTrue(received.add(value));
+            }
+        }
+
+        done.await();
+        Assert.assertNull(queue.poll());
+    }
+}
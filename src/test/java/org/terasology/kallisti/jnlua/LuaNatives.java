@@ -0,0 +1,36 @@
+package org.terasology.kallisti.jnlua;
+
+import org.junit.Assume;
+import org.terasology.jnlua.LuaState53;
+
+/**
+ * Guards tests which run Lua code. They are skipped if the JNLua natives
+ * are not available, unless the kallisti.requireLua system property is
+ * set (gradle test -PrequireLua), in which case they fail instead.
+ */
+public final class LuaNatives {
+    private static Boolean available;
+
+    private LuaNatives() {
+
+    }
+
+    public static synchronized boolean isAvailable() {
+        if (available == null) {
+            try {
+                new LuaState53().close();
+                available = true;
+            } catch (LinkageError | RuntimeException e) {
+                available = false;
+            }
+        }
+        return available;
+    }
+
+    public static void assumeAvailable() {
+        if (!isAvailable() && Boolean.getBoolean("kallisti.requireLua")) {
+            throw new AssertionError("JNLua natives not available, but kallisti.requireLua is set");
+        }
+        Assume.assumeTrue("JNLua natives not available", isAvailable());
+    }
+}
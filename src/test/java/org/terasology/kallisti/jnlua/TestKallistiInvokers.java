@@ -0,0 +1,295 @@
+package org.terasology.kallisti.jnlua;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.terasology.jnlua.LuaRuntimeException;
+import org.terasology.jnlua.LuaState;
+import org.terasology.jnlua.LuaState53;
+import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Runs invokers against a real Lua stack; skipped if the JNLua natives are
+ * not available.
+ */
+public class TestKallistiInvokers {
+    public static class ListReturnSink implements ReturnSink {
+        private final List<Object> values = new ArrayList<>();
+
+        @Override
+        public void pushInteger(long value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushNumber(double value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushBoolean(boolean value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushString(String value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushObject(Object value) {
+            values.add(value);
+        }
+    }
+
+    public static class CountingReturnSink implements ReturnSink {
+        private long count;
+
+        @Override
+        public void pushInteger(long value) {
+            count++;
+        }
+
+        @Override
+        public void pushNumber(double value) {
+            count++;
+        }
+
+        @Override
+        public void pushBoolean(boolean value) {
+            count++;
+        }
+
+        @Override
+        public void pushString(String value) {
+            count++;
+        }
+
+        @Override
+        public void pushObject(Object value) {
+            count++;
+        }
+    }
+
+    public static class TestComponent {
+        @ComponentMethod
+        public int add(int a, Optional<Integer> b) {
+            return a + b.orElse(1);
+        }
+
+        @ComponentMethod
+        public double scale(double a, boolean negate) {
+            return negate ? -a * 2 : a * 2;
+        }
+
+        @ComponentMethod
+        public static String join(String separator, Object... parts) {
+            StringBuilder builder = new StringBuilder();
+            for (Object o : parts) {
+                if (builder.length() > 0) {
+                    builder.append(separator);
+                }
+                builder.append(o);
+            }
+            return builder.toString();
+        }
+
+        @ComponentMethod
+        public static int sum(int... values) {
+            return Arrays.stream(values).sum();
+        }
+
+        @ComponentMethod(name = "pair", returnsMultipleArguments = true)
+        public Object[] getPair(String a) {
+            return new Object[] { a, a.length() };
+        }
+
+        @ComponentMethod
+        public void size(String a, ReturnSink sink) {
+            sink.pushInteger(a.length());
+            sink.pushNumber(a.length() / 2.0);
+        }
+    }
+
+    private final TestComponent component = new TestComponent();
+    private LuaState state;
+
+    @Before
+    public void setUp() {
+        LuaNatives.assumeAvailable();
+        state = new LuaState53();
+    }
+
+    @After
+    public void tearDown() {
+        if (state != null) {
+            state.close();
+        }
+    }
+
+    private static Method getMethod(String name) {
+        for (Method m : TestComponent.class.getMethods()) {
+            if (m.getName().equals(name)) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    private void push(Object... args) {
+        state.setTop(0);
+        for (Object o : args) {
+            if (o == null) {
+                state.pushNil();
+            } else if (o instanceof Integer) {
+                state.pushInteger((Integer) o);
+            } else if (o instanceof Number) {
+                state.pushNumber(((Number) o).doubleValue());
+            } else if (o instanceof Boolean) {
+                state.pushBoolean((Boolean) o);
+            } else {
+                state.pushString(o.toString());
+            }
+        }
+    }
+
+    private List<Object> invoke(String name, Object... args) throws Throwable {
+        MethodHandle invoker = KallistiInvokers.create(getMethod(name), args.length);
+        ListReturnSink sink = new ListReturnSink();
+        push(args);
+        invoker.invokeExact((Object) component, state, (ReturnSink) sink);
+        return sink.values;
+    }
+
+    @Test
+    public void readsOptionalTails() throws Throwable {
+        Assert.assertEquals(Arrays.asList(3L), invoke("add", 2));
+        Assert.assertEquals(Arrays.asList(7L), invoke("add", 2, 5));
+        Assert.assertEquals(Arrays.asList(3L), invoke("add", 2, null));
+    }
+
+    @Test
+    public void readsPrimitives() throws Throwable {
+        Assert.assertEquals(Arrays.asList(3.0), invoke("scale", 1.5, false));
+        Assert.assertEquals(Arrays.asList(-4.0), invoke("scale", 2, true));
+    }
+
+    @Test
+    public void readsVarargs() throws Throwable {
+        Assert.assertEquals(Arrays.asList(""), invoke("join", "-"));
+        Assert.assertEquals(Arrays.asList("a-b-c"), invoke("join", "-", "a", "b", "c"));
+        Assert.assertEquals(Arrays.asList(0L), invoke("sum"));
+        Assert.assertEquals(Arrays.asList(6L), invoke("sum", 1, 2, 3));
+    }
+
+    @Test
+    public void invokesStaticMethods() throws Throwable {
+        MethodHandle invoker = KallistiInvokers.create(getMethod("join"), 2);
+        ListReturnSink sink = new ListReturnSink();
+        push("-", "a");
+        invoker.invokeExact((Object) null, state, (ReturnSink) sink);
+        Assert.assertEquals(Arrays.asList("a"), sink.values);
+    }
+
+    @Test
+    public void pushesMultipleResults() throws Throwable {
+        Assert.assertEquals(Arrays.asList("abc", 3), invoke("getPair", "abc"));
+        Assert.assertEquals(Arrays.asList(4L, 2.0), invoke("size", "abcd"));
+    }
+
+    @Test
+    public void rejectsNonIntegers() throws Throwable {
+        for (Object value : new Object[] { 1.5, 4294967296.0, Double.NaN }) {
+            try {
+                invoke("add", value);
+                Assert.fail("Expected " + value + " to be rejected");
+            } catch (LuaRuntimeException e) {
+                // expected
+            }
+        }
+
+        // Floats with an integer value are accepted.
+        Assert.assertEquals(Arrays.asList(3L), invoke("add", 2.0));
+    }
+
+    @Test
+    public void registersGlobalMethods() throws Throwable {
+        KallistiGlobalRegistry.registerGlobal(component, "test", state);
+        state.setTop(0);
+
+        state.load("return test.add(2), test.add(2, 5), test.pair('abc')", "=test");
+        state.call(0, 4);
+        Assert.assertEquals(3, state.toInteger(1));
+        Assert.assertEquals(7, state.toInteger(2));
+        Assert.assertEquals("abc", state.toString(3));
+        Assert.assertEquals(3, state.toInteger(4));
+        state.setTop(0);
+
+        for (String chunk : new String[] { "test.add(1.5)", "test.missing()" }) {
+            state.load(chunk, "=test");
+            try {
+                state.call(0, 0);
+                Assert.fail("Expected " + chunk + " to fail");
+            } catch (LuaRuntimeException e) {
+                // expected
+            }
+            state.setTop(0);
+        }
+    }
+
+    @Test
+    public void readsPrimitivesWithoutAllocating() throws Throwable {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+
+        MethodHandle invoker = KallistiInvokers.create(getMethod("scale"), 2);
+        CountingReturnSink sink = new CountingReturnSink();
+        push(1000.5, true);
+
+        // Compare against reading the same values by hand, which accounts
+        // for anything JNLua allocates by itself.
+        int calls = 100000;
+        for (int i = 0; i < calls; i++) {
+            invoker.invokeExact((Object) component, state, (ReturnSink) sink);
+            readByHand(sink);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long start = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            readByHand(sink);
+        }
+        long baseline = allocationBean.getThreadAllocatedBytes(threadId) - start;
+
+        start = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < calls; i++) {
+            invoker.invokeExact((Object) component, state, (ReturnSink) sink);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - start;
+
+        Assert.assertTrue(allocated + " bytes allocated, " + baseline + " expected",
+                allocated - baseline < calls);
+    }
+
+    private void readByHand(ReturnSink sink) {
+        state.type(1);
+        state.type(2);
+        double a = state.toNumber(1);
+        boolean negate = state.toBoolean(2);
+        sink.pushNumber(component.scale(a, negate));
+    }
+}
@@ -0,0 +1,380 @@
+package org.terasology.kallisti.oc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.terasology.jnlua.LuaRuntimeException;
+import org.terasology.jnlua.LuaState53;
+import org.terasology.kallisti.jnlua.LuaNatives;
+import org.terasology.kallisti.base.component.ComponentContext;
+import org.terasology.kallisti.base.component.ComponentEventListener;
+import org.terasology.kallisti.base.component.ComponentTickEvent;
+import org.terasology.kallisti.base.component.Peripheral;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs machines on a real Lua runtime; skipped if the JNLua natives are
+ * not available.
+ */
+public class TestMachineOpenComputers {
+    // Counts the signals it receives, waiting ten seconds for each.
+    private static final String COUNTING_MACHINE =
+            "local count = 0 "
+            + "while true do "
+            + "if coroutine.yield(10) then count = count + 1 end "
+            + "signals = count "
+            + "end";
+
+    public static class Context implements ComponentContext {
+        private final String id;
+
+        public Context(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String identifier() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Context && ((Context) other).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    public static class TestPeripheral implements Peripheral {
+        @Override
+        public String type() {
+            return "test";
+        }
+    }
+
+    public static class TickedPeripheral extends TestPeripheral {
+        @ComponentEventListener
+        public void onTick(ComponentTickEvent event) {
+
+        }
+    }
+
+    // Records the tick events it receives, and whether they raced with a
+    // resume of the machine.
+    public static class ResumeCheckingPeripheral extends TestPeripheral {
+        private final MachineOpenComputers machine;
+        private final List<Double> times = new ArrayList<>();
+        private int racingTicks;
+
+        public ResumeCheckingPeripheral(MachineOpenComputers machine) {
+            this.machine = machine;
+        }
+
+        @ComponentEventListener
+        public void onTick(ComponentTickEvent event) {
+            if (machine.isResumeRunning()) {
+                racingTicks++;
+            }
+            times.add(event.getTickTime());
+        }
+    }
+
+    static MachineOpenComputers createMachine(String machineLua) throws Exception {
+        LuaNatives.assumeAvailable();
+        MachineOpenComputers machine = new MachineOpenComputers(machineLua, new Context("computer"), null, 0, true, LuaState53.class, false);
+        machine.initialize();
+        machine.start();
+        return machine;
+    }
+
+    @Test
+    public void deliversSignalBurstInOneTick() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            machine.tick(0.05);
+            for (int i = 0; i < 5; i++) {
+                machine.pushSignal("test", i);
+            }
+            machine.tick(0.05);
+
+            Assert.assertEquals(5, machine.getMetrics().getSignalsDeliveredLastTick());
+            Assert.assertEquals(5, machine.getMetrics().getResumesLastTick());
+            Assert.assertEquals(0.1, machine.getTime(), 1e-9);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void zeroCpuBudgetResumesOncePerTick() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            machine.setTickCpuBudget(0);
+            machine.tick(0.05);
+            for (int i = 0; i < 5; i++) {
+                machine.pushSignal("test", i);
+            }
+            machine.tick(0.05);
+
+            Assert.assertEquals(1, machine.getMetrics().getSignalsDeliveredLastTick());
+            Assert.assertEquals(1, machine.getMetrics().getResumesLastTick());
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void watchdogAbortsBusyMachineThread() throws Exception {
+        MachineOpenComputers machine = createMachine("while true do end");
+        try {
+            machine.setTimeout(0.05);
+            machine.tick(0.05);
+            Assert.fail("Expected the machine to be aborted");
+        } catch (LuaRuntimeException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("too long without yielding"));
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void coroutineHooksUseMachineTimeout() throws Exception {
+        // Hooks coroutines the way machine.lua does.
+        MachineOpenComputers machine = createMachine(
+                "local deadline = computer.realTime() + system.timeout() "
+                + "local co = coroutine.create(function() while true do end end) "
+                + "debug.sethook(co, function() "
+                + "if computer.realTime() > deadline then error('too long without yielding', 0) end "
+                + "end, '', 1000) "
+                + "local ok, err = coroutine.resume(co) "
+                + "result = tostring(err) "
+                + "coroutine.yield(10)");
+        try {
+            machine.setTimeout(0.05);
+            machine.tick(0.05);
+
+            machine.getLuaState().getGlobal("result");
+            String result = machine.getLuaState().toString(-1);
+            machine.getLuaState().pop(1);
+            Assert.assertEquals("too long without yielding", result);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void defersComponentChangesDuringResume() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            // Hold on to resumes instead of running them, so that one is
+            // in flight until run by hand.
+            List<Runnable> resumes = new ArrayList<>();
+            machine.setExecutor(resumes::add);
+            machine.tick(0.05);
+            Assert.assertTrue(machine.isResumeRunning());
+
+            Context context = new Context("test");
+            String address = machine.getComponentAddress(context);
+            Assert.assertTrue(machine.addComponent(context, new TestPeripheral()));
+            Assert.assertNull(machine.getPeripheral(address));
+
+            resumes.remove(0).run();
+            machine.tick(0.05);
+            Assert.assertTrue(machine.getPeripheral(address) instanceof TestPeripheral);
+
+            Assert.assertTrue(machine.isResumeRunning());
+            Assert.assertTrue(machine.removeComponent(context));
+            Assert.assertNotNull(machine.getPeripheral(address));
+
+            resumes.remove(0).run();
+            machine.tick(0.05);
+            Assert.assertNull(machine.getPeripheral(address));
+
+            // The machine cannot be stopped while a resume is running.
+            resumes.remove(0).run();
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void defersTickEventsDuringResume() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            ResumeCheckingPeripheral peripheral = new ResumeCheckingPeripheral(machine);
+            machine.addComponent(new Context("checking"), peripheral);
+
+            List<Runnable> resumes = new ArrayList<>();
+            machine.setExecutor(resumes::add);
+            machine.tick(0.05);
+            Assert.assertTrue(machine.isResumeRunning());
+            machine.tick(0.05);
+            machine.tick(0.05);
+            Assert.assertEquals(1, peripheral.times.size());
+
+            resumes.remove(0).run();
+            machine.tick(0.05);
+            Assert.assertEquals(2, peripheral.times.size());
+            Assert.assertEquals(0.15, peripheral.times.get(1), 1e-9);
+            Assert.assertEquals(0, peripheral.racingTicks);
+
+            resumes.remove(0).run();
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void rejectedResumeDoesNotStallMachine() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            machine.setExecutor((r) -> {
+                throw new RejectedExecutionException();
+            });
+            try {
+                machine.tick(0.05);
+                Assert.fail("Expected the resume to be rejected");
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+            Assert.assertFalse(machine.isResumeRunning());
+
+            machine.setExecutor(Runnable::run);
+            machine.tick(0.05);
+            Assert.assertFalse(machine.isResumeRunning());
+            Assert.assertEquals(0.1, machine.getTime(), 1e-9);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void tickListenersKeepMachineAwake() throws Exception {
+        MachineOpenComputers machine = createMachine(COUNTING_MACHINE);
+        try {
+            machine.tick(0.05);
+            Assert.assertEquals(10.0, machine.getWakeupDelay(), 1e-9);
+
+            // Each tick also delivers the component_added signal.
+            Context context = new Context("ticked");
+            TickedPeripheral peripheral = new TickedPeripheral();
+            machine.addComponent(context, peripheral);
+            machine.tick(0.05);
+            Assert.assertEquals(0.0, machine.getWakeupDelay(), 0.0);
+
+            machine.setSelfWaking(peripheral);
+            Assert.assertEquals(10.0, machine.getWakeupDelay(), 1e-9);
+
+            machine.removeComponent(context);
+            machine.addComponent(context, new TickedPeripheral());
+            machine.tick(0.05);
+            Assert.assertEquals(0.0, machine.getWakeupDelay(), 0.0);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void rebootRestoresLuaState() throws Exception {
+        // The boot address is kept on the Java side, so it tells the boots
+        // apart.
+        MachineOpenComputers machine = createMachine(
+                "local registry = debug.getregistry() "
+                + "if computer.getBootAddress() ~= 'booted' then "
+                + "computer.setBootAddress('booted') "
+                + "string.upper = nil math.extra = 1 extra = 1 "
+                + "registry.extra = 1 package.loaded.extra = {} "
+                + "getmetatable('').__index = {} debug.setmetatable(0, {}) "
+                + "coroutine.yield(true) "
+                + "else "
+                + "result = string.upper ~= nil and math.extra == nil and extra == nil "
+                + "and registry.extra == nil and package.loaded.extra == nil "
+                + "and getmetatable('').__index == string and getmetatable(0) == nil "
+                + "coroutine.yield(10) "
+                + "end");
+        try {
+            // Run, reboot, and run again.
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(machine.tick(0.05));
+            }
+
+            machine.getLuaState().getGlobal("result");
+            boolean result = machine.getLuaState().toBoolean(-1);
+            machine.getLuaState().pop(1);
+            Assert.assertTrue(result);
+        } finally {
+            machine.close();
+        }
+    }
+
+    private static MachineOpenComputers createImageMachine(String id) throws Exception {
+        MachineOpenComputers machine = new MachineOpenComputers(
+                "local address = next(component.list('test')) "
+                + "while true do coroutine.yield(10) result = address end",
+                new Context(id), null, 0, true, LuaState53.class, true);
+        machine.addComponent(new Context(id + ":test"), new TestPeripheral());
+        machine.initialize();
+        machine.start();
+        return machine;
+    }
+
+    @Test
+    public void bootImageRemapsAddresses() throws Exception {
+        LuaNatives.assumeAvailable();
+        OCBootImageCache cache = new OCBootImageCache();
+        MachineOpenComputers template = createImageMachine("template");
+        try {
+            template.tick(0.05);
+            cache.capture(template);
+        } finally {
+            template.close();
+        }
+
+        MachineOpenComputers machine = createImageMachine("machine");
+        try {
+            Assert.assertTrue(cache.restore(machine));
+            machine.tick(0.05);
+
+            machine.getLuaState().getGlobal("result");
+            String result = machine.getLuaState().toString(-1);
+            machine.getLuaState().pop(1);
+            Assert.assertEquals(machine.getComponentAddress(new Context("machine:test")), result);
+        } finally {
+            machine.close();
+        }
+    }
+
+    @Test
+    public void releasesMemoryWhenStopped() throws Exception {
+        LuaNatives.assumeAvailable();
+        long reserved = OCLuaMemoryPool.getReserved();
+        MachineOpenComputers machine = new MachineOpenComputers("coroutine.yield(10) coroutine.yield(false)", new Context("computer"), null, 1024 * 1024, true, LuaState53.class, false);
+        try {
+            machine.initialize();
+            long limit = OCLuaMemoryPool.getReserved() - reserved;
+            Assert.assertTrue(limit >= 1024 * 1024);
+
+            machine.start();
+            machine.stop();
+            Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+
+            machine.start();
+            Assert.assertEquals(reserved + limit, OCLuaMemoryPool.getReserved());
+
+            // The machine requests a shutdown on its second resume, which
+            // the following tick carries out.
+            Assert.assertTrue(machine.tick(0.05));
+            Assert.assertTrue(machine.tick(20));
+            Assert.assertFalse(machine.tick(0.05));
+            Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+        } finally {
+            machine.close();
+        }
+        Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+    }
+}
@@ -0,0 +1,169 @@
+package org.terasology.kallisti.oc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.terasology.kallisti.base.component.ComponentContext;
+import org.terasology.kallisti.base.component.Machine;
+import org.terasology.kallisti.base.interfaces.Persistable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+
+public class TestOCBootImageCache {
+    public static class Context implements ComponentContext {
+        private final String id;
+
+        public Context(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String identifier() {
+            return id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Context && ((Context) other).id.equals(id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
+        }
+    }
+
+    public static class Gpu {
+
+    }
+
+    public static class Screen {
+
+    }
+
+    /**
+     * A machine persisting the addresses of its components, and recording
+     * the data it is unpersisted from with the addresses restored.
+     */
+    public static class ImageMachine extends Machine implements OCImagePersistable {
+        private String unpersisted;
+
+        @Override
+        protected void startInternal() {
+
+        }
+
+        @Override
+        protected void stopInternal() {
+
+        }
+
+        @Override
+        protected boolean tickInternal(double time) {
+            return true;
+        }
+
+        @Override
+        public Optional<Persistable> getPersistenceHandler() {
+            return Optional.of(this);
+        }
+
+        @Override
+        public void persist(OutputStream data) throws IOException {
+            persist(data, Collections.emptyList());
+        }
+
+        @Override
+        public void persist(OutputStream data, List<String> addresses) throws IOException {
+            StringBuilder builder = new StringBuilder();
+            for (Object o : getAllComponents()) {
+                String address = MachineOpenComputers.getAddress(getContext(o));
+                int index = addresses.indexOf(address);
+                builder.append(index >= 0 ? "#" + index : address).append('|');
+            }
+            data.write(builder.toString().getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public void unpersist(InputStream data) throws IOException {
+            unpersist(data, Collections.emptyList());
+        }
+
+        @Override
+        public void unpersist(InputStream data, List<String> addresses) throws IOException {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            int b;
+            while ((b = data.read()) >= 0) {
+                stream.write(b);
+            }
+            StringBuilder builder = new StringBuilder();
+            for (String entry : new String(stream.toByteArray(), StandardCharsets.ISO_8859_1).split("\\|")) {
+                builder.append(entry.startsWith("#") ? addresses.get(Integer.parseInt(entry.substring(1))) : entry).append('|');
+            }
+            unpersisted = builder.toString();
+        }
+    }
+
+    private static ImageMachine createMachine(String prefix, Object... components) {
+        ImageMachine machine = new ImageMachine();
+        for (int i = 0; i < components.length; i++) {
+            machine.addComponent(new Context(prefix + ":" + i), components[i]);
+        }
+        return machine;
+    }
+
+    private static String address(String identifier) {
+        return MachineOpenComputers.getAddress(new Context(identifier));
+    }
+
+    @Test
+    public void restoreRemapsAddresses() throws Exception {
+        OCBootImageCache cache = new OCBootImageCache();
+        cache.capture(createMachine("template", new Gpu(), new Screen()));
+
+        ImageMachine machine = createMachine("machine", new Gpu(), new Screen());
+        Assert.assertTrue(cache.restore(machine));
+        Assert.assertEquals(address("machine:0") + "|" + address("machine:1") + "|", machine.unpersisted);
+    }
+
+    @Test
+    public void restoreRejectsMismatchedComponents() throws Exception {
+        OCBootImageCache cache = new OCBootImageCache();
+        cache.capture(createMachine("template", new Gpu(), new Screen()));
+
+        ImageMachine swapped = createMachine("machine", new Screen(), new Gpu());
+        Assert.assertFalse(cache.restore(swapped));
+        Assert.assertNull(swapped.unpersisted);
+
+        ImageMachine missing = createMachine("machine", new Gpu());
+        Assert.assertFalse(cache.restore(missing));
+
+        // Both components share a context in the template only.
+        ImageMachine shared = new ImageMachine();
+        shared.addComponent(new Context("template"), new Gpu());
+        shared.addComponent(new Context("template"), new Screen());
+        cache.capture(shared);
+        ImageMachine separate = createMachine("machine", new Gpu(), new Screen());
+        Assert.assertFalse(cache.restore(separate));
+        Assert.assertNull(separate.unpersisted);
+    }
+
+    @Test
+    public void keepsMostRecentlyUsedImages() throws Exception {
+        OCBootImageCache cache = new OCBootImageCache(2);
+        cache.capture(createMachine("a", new Gpu()));
+        cache.capture(createMachine("b", new Screen()));
+        Assert.assertTrue(cache.get(createMachine("machine", new Gpu())).isPresent());
+
+        cache.capture(createMachine("c", new Gpu(), new Screen()));
+        Assert.assertTrue(cache.get(createMachine("machine", new Gpu())).isPresent());
+        Assert.assertFalse(cache.get(createMachine("machine", new Screen())).isPresent());
+        Assert.assertTrue(cache.get(createMachine("machine", new Gpu(), new Screen())).isPresent());
+    }
+}
@@ -0,0 +1,61 @@
+package org.terasology.kallisti.oc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.terasology.jnlua.LuaState53;
+
+public class TestOCLuaMemoryPool {
+    @Test
+    public void reserveAndRelease() {
+        long capacity = OCLuaMemoryPool.getCapacity();
+        long reserved = OCLuaMemoryPool.getReserved();
+        OCLuaMemoryPool.setCapacity(reserved + 1000);
+        try {
+            Assert.assertTrue(OCLuaMemoryPool.reserve(600));
+            Assert.assertFalse(OCLuaMemoryPool.reserve(600));
+            Assert.assertEquals(reserved + 600, OCLuaMemoryPool.getReserved());
+
+            OCLuaMemoryPool.release(600);
+            Assert.assertTrue(OCLuaMemoryPool.reserve(1000));
+            OCLuaMemoryPool.release(1000);
+            Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+        } finally {
+            OCLuaMemoryPool.setCapacity(capacity);
+        }
+    }
+
+    @Test
+    public void failedConstructionReservesNothing() {
+        long capacity = OCLuaMemoryPool.getCapacity();
+        long reserved = OCLuaMemoryPool.getReserved();
+        OCLuaMemoryPool.setCapacity(reserved + 1000);
+        try {
+            new MachineOpenComputers("", new TestMachineOpenComputers.Context("computer"), null, 2000, true, LuaState53.class, false);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+        } finally {
+            OCLuaMemoryPool.setCapacity(capacity);
+        }
+    }
+
+    @Test
+    public void reservesScaledMemorySize() {
+        long capacity = OCLuaMemoryPool.getCapacity();
+        long reserved = OCLuaMemoryPool.getReserved();
+        OCLuaMemoryPool.setCapacity(reserved + 3000);
+        try {
+            new MachineOpenComputers("", new TestMachineOpenComputers.Context("computer"), null, 2000, 2.0f, LuaState53.class, null);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals(reserved, OCLuaMemoryPool.getReserved());
+        } finally {
+            OCLuaMemoryPool.setCapacity(capacity);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidMemoryScale() {
+        new MachineOpenComputers("", new TestMachineOpenComputers.Context("computer"), null, 2000, 0.0f, LuaState53.class, null);
+    }
+}
@@ -0,0 +1,67 @@
+package org.terasology.kallisti.oc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+public class TestOCMachineMetrics {
+    @Test
+    public void resumeLatencyBuckets() {
+        OCMachineMetrics metrics = new OCMachineMetrics(() -> 0);
+        metrics.recordResume(500);
+        metrics.recordResume(3_000);
+        metrics.recordResume(1_000_000);
+        metrics.recordResume(Long.MAX_VALUE);
+        metrics.endTick(0.05, 0, 0, 0);
+
+        long[] histogram = metrics.getResumeLatencyHistogram();
+        Assert.assertEquals(1, histogram[0]);
+        Assert.assertEquals(1, histogram[1]);
+        Assert.assertEquals(1, histogram[9]);
+        Assert.assertEquals(1, histogram[histogram.length - 1]);
+        Assert.assertEquals(4, metrics.getResumeCount());
+        Assert.assertEquals(4, metrics.getResumesLastTick());
+    }
+
+    @Test
+    public void perTickCounters() {
+        OCMachineMetrics metrics = new OCMachineMetrics(() -> 3);
+        for (int i = 0; i < 20; i++) {
+            metrics.recordSignalDelivered();
+            metrics.recordComponentCall();
+            metrics.endTick(0.05, 1024, 4096, 0.5);
+        }
+        metrics.recordSignalDelivered();
+        metrics.recordSignalDelivered();
+        metrics.endTick(0.05, 2048, 8192, 0.75);
+
+        Assert.assertEquals(22, metrics.getSignalsDelivered());
+        Assert.assertEquals(2, metrics.getSignalsDeliveredLastTick());
+        Assert.assertEquals(20.0, metrics.getComponentCallsPerSecond(), 0.5);
+        Assert.assertEquals(2048, metrics.getMemoryUsed());
+        Assert.assertEquals(8192, metrics.getNativeMemoryUsed());
+        Assert.assertEquals(3, metrics.getSignalsDropped());
+    }
+
+    @Test
+    public void perTickSignalSnapshots() {
+        AtomicLong dropped = new AtomicLong();
+        OCMachineMetrics metrics = new OCMachineMetrics(dropped::get);
+        for (int i = 0; i < 3; i++) {
+            metrics.recordSignalPushed();
+        }
+        dropped.set(2);
+        metrics.endTick(0.05, 0, 0, 0);
+
+        Assert.assertEquals(3, metrics.getSignalsPushedLastTick());
+        Assert.assertEquals(2, metrics.getSignalsDroppedLastTick());
+
+        metrics.recordSignalPushed();
+        metrics.endTick(0.05, 0, 0, 0);
+
+        Assert.assertEquals(1, metrics.getSignalsPushedLastTick());
+        Assert.assertEquals(0, metrics.getSignalsDroppedLastTick());
+        Assert.assertEquals(4, metrics.getSignalsPushed());
+    }
+}
@@ -0,0 +1,94 @@
+package org.terasology.kallisti.oc;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.terasology.kallisti.base.component.ComponentMethod;
+import org.terasology.kallisti.base.component.ReturnSink;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+public class TestOCMethodTable {
+    public static class ListReturnSink implements ReturnSink {
+        private final List<Object> values = new ArrayList<>();
+
+        @Override
+        public void pushInteger(long value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushNumber(double value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushBoolean(boolean value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushString(String value) {
+            values.add(value);
+        }
+
+        @Override
+        public void pushObject(Object value) {
+            values.add(value);
+        }
+    }
+
+    public static class TestComponent {
+        @ComponentMethod
+        public int add(int a, Optional<Integer> b) {
+            return a + b.orElse(1);
+        }
+
+        @ComponentMethod(name = "pair", returnsMultipleArguments = true)
+        public Object[] getPair(String a) {
+            return new Object[] { a, a.length() };
+        }
+
+        @ComponentMethod(limit = 4)
+        public void size(String a, ReturnSink sink) {
+            sink.pushInteger(a.length());
+            sink.pushNumber(a.length() / 2.0);
+        }
+
+        @ComponentMethod(synchronize = true)
+        public void fail() {
+            throw new RuntimeException("failed");
+        }
+    }
+
+    private static List<Object> invoke(OCMethodTable table, String name, Object... args) {
+        ListReturnSink sink = new ListReturnSink();
+        Throwable t = table.find(name, args.length).invoke(new TestComponent(), args, sink);
+        if (t != null) {
+            sink.pushString(t.getMessage());
+        }
+        return sink.values;
+    }
+
+    @Test
+    public void dispatchesByNameAndArity() {
+        OCMethodTable table = OCMethodTable.get(TestComponent.class);
+        Assert.assertTrue(table == OCMethodTable.get(TestComponent.class));
+
+        Assert.assertNull(table.find("add", 0));
+        Assert.assertNull(table.find("add", 3));
+        Assert.assertNull(table.find("size", 2));
+        Assert.assertEquals(3L, invoke(table, "add", 2L).get(0));
+        Assert.assertEquals(5L, invoke(table, "add", 2.0, 3).get(0));
+        Assert.assertArrayEquals(new Object[] { "ab", 2 }, invoke(table, "pair", "ab").toArray());
+        Assert.assertArrayEquals(new Object[] { 3L, 1.5 }, invoke(table, "size", "abc").toArray());
+        Assert.assertArrayEquals(new Object[] { "failed" }, invoke(table, "fail").toArray());
+
+        Assert.assertEquals(0.25, table.find("size", 1).getCost(), 1e-9);
+        Assert.assertEquals(0.0, table.find("pair", 1).getCost(), 1e-9);
+
+        Assert.assertEquals(Boolean.FALSE, table.getDirectFlags().get("fail"));
+        Assert.assertEquals(Boolean.TRUE, table.getDirectFlags().get("pair"));
+    }
+}